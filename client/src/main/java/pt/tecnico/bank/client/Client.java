@@ -3,13 +3,17 @@ package pt.tecnico.bank.client;
 import com.google.protobuf.ByteString;
 import io.grpc.StatusRuntimeException;
 import pt.tecnico.bank.client.exceptions.AccountAlreadyExistsException;
+import pt.tecnico.bank.client.exceptions.DefaultErrorException;
 import pt.tecnico.bank.client.exceptions.InvalidAmountException;
 import pt.tecnico.bank.client.frontend.ClientServerFrontend;
 import pt.tecnico.bank.crypto.Crypto;
+import pt.tecnico.bank.crypto.SignaturePayload;
+import pt.tecnico.bank.crypto.SigningMode;
 import pt.tecnico.bank.client.exceptions.AccountDoesNotExistsException;
 import pt.tecnico.bank.server.grpc.Server.*;
 
 import java.security.Key;
+import java.security.KeyPair;
 import java.security.PublicKey;
 import java.util.*;
 
@@ -18,12 +22,20 @@ public class Client {
     public final String ANSI_GREEN = "\033[0;32m";
     public final String ANSI_RED = "\033[0;31m";
 
+    private static final int DEFAULT_RECEIVE_PAGE_SIZE = 100;
+
     private final ClientServerFrontend frontend;
     private final Crypto crypto;
     private final String username;
+    private final SigningMode signingMode = SigningMode.CANONICAL_V1;
+    // pending transactions received per request, 0 to receive them all at once
+    private final int receivePageSize = Integer.getInteger("client.receivePageSize", DEFAULT_RECEIVE_PAGE_SIZE);
 
     private int rid;
 
+    // histories of the accounts audited so far, so that auditing one again only fetches what is new
+    private final Map<String, AuditedHistory> auditedHistories = new HashMap<>();
+
     public Client(String username, String password, int nByzantineServers) {
         this.username = username;
         this.crypto = new Crypto(username, password, true);
@@ -45,7 +57,8 @@ public class Client {
             // signature of (wid, bal)
             byte[] pairSignature = crypto.encrypt(this.username, initWid + String.valueOf(initBalance));
 
-            String m = this.username + initWid + initBalance + Arrays.toString(pairSignature) + pubKey;
+            SignaturePayload m = crypto.payload(signingMode).add(this.username).add(initWid).add(initBalance)
+                    .add(pairSignature).add((PublicKey) pubKey);
 
             byte[] signature = crypto.encrypt(this.username, m);
 
@@ -56,10 +69,13 @@ public class Client {
                     .setPairSignature(ByteString.copyFrom(pairSignature))
                     .setPublicKey(ByteString.copyFrom(encoded))
                     .setSignature(ByteString.copyFrom(signature))
+                    .setSigningMode(signingMode.getVersion())
                     .build();
 
             frontend.openAccount(req);
 
+            open_sessions();
+
         } catch (StatusRuntimeException e) {
             return handleError(e);
         } catch (AccountAlreadyExistsException e) {
@@ -104,10 +120,10 @@ public class Client {
                     .build();
 
             byte[] pairSignature = crypto.encrypt(this.username,  String.valueOf(widToSend) + balanceToSend);
+            byte[] historySignature = signHistory(res, Collections.singletonList(transaction), widToSend);
 
-            String m = transaction.toString() + nonce + timestamp + widToSend + balanceToSend + Arrays.toString(pairSignature);
-
-            byte[] signature = crypto.encrypt(this.username, m);
+            SignaturePayload m = crypto.payload(signingMode).add(transaction).add(nonce).add(timestamp).add(widToSend)
+                    .add(balanceToSend).add(pairSignature);
 
             SendAmountRequest req = SendAmountRequest.newBuilder()
                     .setTransaction(transaction)
@@ -115,7 +131,10 @@ public class Client {
                     .setTimestamp(timestamp)
                     .setBalance(balanceToSend)
                     .setPairSignature(ByteString.copyFrom(pairSignature))
-                    .setSignature(ByteString.copyFrom(signature))
+                    .setSignature(sign(m))
+                    .putAllMacs(frontend.sessionMacs(m))
+                    .setSigningMode(signingMode.getVersion())
+                    .setHistorySignature(ByteString.copyFrom(historySignature))
                     .build();
 
             frontend.sendAmount(req);
@@ -157,83 +176,122 @@ public class Client {
 
     public String receive_amount() {
 
-        int amountToReceive;
+        int amountToReceive = 0;
 
         try {
-            CheckAccountResponse res = getCheckAccountResponse(this.username);
+            CheckAccountResponse res;
 
-            this.rid++;
+            // pending transactions are received a page at a time, until a page leaves none behind
+            do {
+                res = getCheckAccountResponse(this.username, this.receivePageSize, 0);
 
-            PublicKey key = crypto.getPublicKey(this.username);
+                this.rid++;
+
+                if (res.getPendingTransactionsList().isEmpty())
+                    break;
+
+                amountToReceive += receivePage(res);
 
-            amountToReceive = 0;
-            List<Transaction> pendingTransactions = res.getPendingTransactionsList();
+            } while (res.getPendingCount() > res.getPendingTransactionsCount());
 
-            if (pendingTransactions.isEmpty())
+            if (amountToReceive == 0)
                 return ANSI_GREEN + "No pending transactions.";
 
-            int balance = res.getBalance();
-            int wid = res.getWid();
+        } catch (StatusRuntimeException e) {
+            return handleError(e);
+        } catch (AccountDoesNotExistsException e) {
+            return ANSI_RED + e.getMessage();
+        }
 
-            List<Transaction> transactions = new ArrayList<>();
+        return ANSI_GREEN + "Amount deposited to your account: " + amountToReceive;
+    }
 
-            for (Transaction pending : pendingTransactions) { // receiver creates own transactions from the pending ones
+    /**
+     * Receives the pending transactions of a checkAccount response, a page of them if the check was paged.
+     * @return the amount received.
+     */
+    private int receivePage(CheckAccountResponse res) {
 
-                wid++;
+        PublicKey key = crypto.getPublicKey(this.username);
 
-                String transactionMessage =
-                        pending.getAmount() + pending.getSenderUsername() + pending.getReceiverUsername()
-                                + crypto.bytesToKey(pending.getSenderKey()) + crypto.bytesToKey(pending.getReceiverKey())
-                                + wid + false;
+        int amountToReceive = 0;
+        List<Transaction> pendingTransactions = res.getPendingTransactionsList();
 
-                byte[] transactionSignature = crypto.encrypt(this.username, transactionMessage);
+        int balance = res.getBalance();
+        int wid = res.getWid();
 
-                transactions.add(
-                        Transaction.newBuilder()
-                                .setAmount(pending.getAmount())
-                                .setSenderUsername(pending.getSenderUsername())
-                                .setReceiverUsername(pending.getReceiverUsername())
-                                .setSenderKey(pending.getSenderKey())
-                                .setReceiverKey(pending.getReceiverKey())
-                                .setWid(wid)
-                                .setSent(false)
-                                .setSignature(ByteString.copyFrom(transactionSignature))
-                                .build()
-                );
-            }
+        List<Transaction> transactions = new ArrayList<>();
 
-            for (Transaction pendingTransaction : pendingTransactions)
-                amountToReceive += pendingTransaction.getAmount();
+        for (Transaction pending : pendingTransactions) { // receiver creates own transactions from the pending ones
 
-            long nonce = crypto.generateNonce();
-            long timestamp = crypto.generateTimestamp();
+            wid++;
 
-            int balanceToSend = balance + amountToReceive;
+            String transactionMessage =
+                    pending.getAmount() + pending.getSenderUsername() + pending.getReceiverUsername()
+                            + crypto.bytesToKey(pending.getSenderKey()) + crypto.bytesToKey(pending.getReceiverKey())
+                            + wid + false;
 
-            byte[] pairSignature = crypto.encrypt(this.username,  String.valueOf(wid) + balanceToSend);
+            byte[] transactionSignature = crypto.encrypt(this.username, transactionMessage);
 
-            String m = transactions + key.toString() + nonce + timestamp + wid + balanceToSend + Arrays.toString(pairSignature);
+            transactions.add(
+                    Transaction.newBuilder()
+                            .setAmount(pending.getAmount())
+                            .setSenderUsername(pending.getSenderUsername())
+                            .setReceiverUsername(pending.getReceiverUsername())
+                            .setSenderKey(pending.getSenderKey())
+                            .setReceiverKey(pending.getReceiverKey())
+                            .setWid(wid)
+                            .setSent(false)
+                            .setSignature(ByteString.copyFrom(transactionSignature))
+                            .build()
+            );
+        }
 
-            ReceiveAmountRequest req = ReceiveAmountRequest.newBuilder()
-                    .addAllPendingTransactions(transactions)
-                    .setPublicKey(ByteString.copyFrom(key.getEncoded()))
-                    .setNonce(nonce)
-                    .setTimestamp(timestamp)
-                    .setWid(wid)
-                    .setBalance(balanceToSend)
-                    .setPairSignature(ByteString.copyFrom(pairSignature))
-                    .setSignature(ByteString.copyFrom(crypto.encrypt(this.username, m)))
-                    .build();
+        for (Transaction pendingTransaction : pendingTransactions)
+            amountToReceive += pendingTransaction.getAmount();
 
-            frontend.receiveAmount(req);
+        long nonce = crypto.generateNonce();
+        long timestamp = crypto.generateTimestamp();
 
-        } catch (StatusRuntimeException e) {
-            return handleError(e);
-        } catch (AccountDoesNotExistsException e) {
-            return ANSI_RED + e.getMessage();
+        int balanceToSend = balance + amountToReceive;
+
+        byte[] pairSignature = crypto.encrypt(this.username,  String.valueOf(wid) + balanceToSend);
+        byte[] historySignature = signHistory(res, transactions, wid);
+
+        SignaturePayload m = crypto.payload(signingMode).add(transactions).add(key).add(nonce).add(timestamp).add(wid)
+                .add(balanceToSend).add(pairSignature);
+
+        List<Integer> senderWids = new ArrayList<>();
+
+        if (this.receivePageSize != 0) {
+            m.add(this.receivePageSize).add(0);
+
+            // our copies carry our wids, the sender's ones tell the servers which pending transactions these are
+            for (Transaction pending : pendingTransactions) {
+                senderWids.add(pending.getWid());
+                m.add(pending.getWid());
+            }
         }
 
-        return ANSI_GREEN + "Amount deposited to your account: " + amountToReceive;
+        ReceiveAmountRequest req = ReceiveAmountRequest.newBuilder()
+                .addAllPendingTransactions(transactions)
+                .setPublicKey(ByteString.copyFrom(key.getEncoded()))
+                .setNonce(nonce)
+                .setTimestamp(timestamp)
+                .setWid(wid)
+                .setBalance(balanceToSend)
+                .setPairSignature(ByteString.copyFrom(pairSignature))
+                .setSignature(sign(m))
+                .putAllMacs(frontend.sessionMacs(m))
+                .setSigningMode(signingMode.getVersion())
+                .setHistorySignature(ByteString.copyFrom(historySignature))
+                .setLimit(this.receivePageSize)
+                .addAllSenderWids(senderWids)
+                .build();
+
+        frontend.receiveAmount(req);
+
+        return amountToReceive;
     }
 
     public String audit(String checkAccountName) {
@@ -258,7 +316,15 @@ public class Client {
             // ---------------------------------------------------------
 
 
-            String m = clientKey.toString() + auditKey + nonce + timestamp + pows + (this.rid + 1);
+            AuditedHistory known = auditedHistories.getOrDefault(checkAccountName, AuditedHistory.EMPTY);
+            int since = known.transactions.size();
+            Transaction anchor = since == 0 ? Transaction.getDefaultInstance() : known.transactions.get(since - 1);
+
+            SignaturePayload m = crypto.payload(signingMode).add(clientKey).add(auditKey).add(nonce).add(timestamp).add(pows)
+                    .add(this.rid + 1);
+
+            if (since != 0)
+                m.add(since);
 
             AuditRequest req = AuditRequest.newBuilder()
                     .setClientKey(ByteString.copyFrom(clientKey.getEncoded()))
@@ -267,19 +333,35 @@ public class Client {
                     .setTimestamp(timestamp)
                     .putAllPows(pows)
                     .setRid(this.rid + 1)
-                    .setSignature(ByteString.copyFrom(crypto.encrypt(this.username, m)))
+                    .setSignature(sign(m))
+                    .putAllMacs(frontend.sessionMacs(m))
+                    .setSigningMode(signingMode.getVersion())
+                    .setSince(since)
                     .build();
 
-            AuditResponse res = frontend.audit(req);
+            AuditResponse res = frontend.auditStream(req, anchor, known.root);
 
             this.rid++;
 
             // Write-back
             auditWriteBack(clientKey, auditKey, res);
 
+            List<Transaction> transactions = new ArrayList<>(known.transactions);
+            byte[] root = known.root;
+
+            for (Transaction transaction : res.getTransactionsList()) {
+                transactions.add(transaction);
+                root = crypto.chain(root, transaction);
+            }
+
+            auditedHistories.put(checkAccountName, new AuditedHistory(transactions, root));
 
-            transactionsToString = getTransactionsToString(res);
+            transactionsToString = getTransactionsToString(transactions);
 
+        } catch (DefaultErrorException e) {
+            // no server agreed with the history we have, the next audit starts over
+            auditedHistories.remove(checkAccountName);
+            return handleError(e);
         } catch (StatusRuntimeException e) {
             return handleError(e);
         } catch (AccountDoesNotExistsException e) {
@@ -301,13 +383,15 @@ public class Client {
             long nonce = crypto.generateNonce();
             long timestamp = crypto.generateTimestamp();
 
-            byte[] signature = crypto.encrypt(this.username, key.toString() + nonce + timestamp);
+            SignaturePayload m = crypto.payload(signingMode).add(key).add(nonce).add(timestamp);
 
             RidRequest req = RidRequest.newBuilder()
                     .setPublicKey(ByteString.copyFrom(key.getEncoded()))
                     .setNonce(nonce)
                     .setTimestamp(timestamp)
-                    .setSignature(ByteString.copyFrom(signature))
+                    .setSignature(sign(m))
+                    .putAllMacs(frontend.sessionMacs(m))
+                    .setSigningMode(signingMode.getVersion())
                     .build();
 
             this.rid = frontend.getRid(req).getRid();
@@ -318,11 +402,79 @@ public class Client {
     }
 
 
+    /**
+     * Optional: once a session is open with a server, requests to it are authenticated with a mac instead of a signature.
+     * Pair and transaction signatures are still made with the account key.
+     */
+    public void open_sessions() {
+
+        try {
+
+            PublicKey key = crypto.getPublicKey(this.username);
+            KeyPair ephemeralKeyPair = crypto.generateSessionKeyPair();
+
+            if (key == null || ephemeralKeyPair == null) return;
+
+            long nonce = crypto.generateNonce();
+            long timestamp = crypto.generateTimestamp();
+
+            byte[] ephemeralKey = ephemeralKeyPair.getPublic().getEncoded();
+
+            byte[] signature = crypto.encrypt(this.username,
+                    crypto.payload(signingMode).add(key).add(ephemeralKey).add(nonce).add(timestamp));
+
+            OpenSessionRequest req = OpenSessionRequest.newBuilder()
+                    .setPublicKey(ByteString.copyFrom(key.getEncoded()))
+                    .setEphemeralKey(ByteString.copyFrom(ephemeralKey))
+                    .setNonce(nonce)
+                    .setTimestamp(timestamp)
+                    .setSignature(ByteString.copyFrom(signature))
+                    .setSigningMode(signingMode.getVersion())
+                    .build();
+
+            frontend.openSession(req, ephemeralKeyPair.getPrivate());
+
+        } catch (StatusRuntimeException ignored) {
+        }
+
+    }
+
+
     // aux
 
-    private StringBuilder getTransactionsToString(AuditResponse res) {
+    /**
+     * The request signature, left empty when every server has a session and checks the macs instead.
+     */
+    private ByteString sign(SignaturePayload message) {
+        if (frontend.hasSessions())
+            return ByteString.EMPTY;
+
+        return ByteString.copyFrom(crypto.encrypt(this.username, message));
+    }
+
+    /**
+     * Signs our history root after these transactions, if the root the servers reported is one we signed before (or the
+     * empty history of a new account). Otherwise nothing is signed, as we could not tell what history we vouch for.
+     */
+    private byte[] signHistory(CheckAccountResponse res, List<Transaction> transactions, int wid) {
+        PublicKey key = crypto.getPublicKey(this.username);
+        byte[] root = crypto.byteStringToByteArray(res.getHistoryRoot());
+
+        boolean ours = res.getWid() == 0 ? root.length == 0
+                : res.getHistoryWid() == res.getWid() && !res.getHistorySignature().isEmpty()
+                    && crypto.validateMessage(key, crypto.historyPayload(res.getWid(), root), res.getHistorySignature().toByteArray());
+
+        if (!ours)
+            return new byte[0];
+
+        for (Transaction transaction : transactions)
+            root = crypto.chain(root, transaction);
+
+        return crypto.encrypt(this.username, crypto.historyPayload(wid, root));
+    }
+
+    private StringBuilder getTransactionsToString(List<Transaction> transactions) {
         StringBuilder transactionsToString = new StringBuilder();
-        List<Transaction> transactions = res.getTransactionsList();
 
         for (Transaction t : transactions) {
             if (t.getSent()) {
@@ -363,9 +515,11 @@ public class Client {
         long nonce = crypto.generateNonce();
         long timestamp = crypto.generateTimestamp();
 
-        String message = clientKey.toString() + auditKey + nonce + timestamp + res.getTransactionsList();
+        SignaturePayload message = crypto.payload(signingMode).add(clientKey).add(auditKey).add(nonce).add(timestamp)
+                .add(res.getTransactionsList());
 
-        byte[] signature = crypto.encrypt(this.username, message);
+        if (res.getSince() != 0)
+            message.add(res.getSince());
 
         AuditWriteBackRequest reqBack = AuditWriteBackRequest.newBuilder()
                 .setClientKey(ByteString.copyFrom(clientKey.getEncoded()))
@@ -373,7 +527,12 @@ public class Client {
                 .setNonce(nonce)
                 .setTimestamp(timestamp)
                 .addAllTransactions(res.getTransactionsList())
-                .setSignature(ByteString.copyFrom(signature))
+                .setSignature(sign(message))
+                .putAllMacs(frontend.sessionMacs(message))
+                .setSigningMode(signingMode.getVersion())
+                .setSince(res.getSince())
+                .setHistoryWid(res.getHistoryWid())
+                .setHistorySignature(res.getHistorySignature())
                 .build();
 
         frontend.auditWriteBack(reqBack);
@@ -387,32 +546,27 @@ public class Client {
         long nonce = crypto.generateNonce();
         long timestamp = crypto.generateTimestamp();
 
-        byte[] signature = crypto.encrypt(this.username, key.toString() + nonce + timestamp);
+        SignaturePayload m = crypto.payload(signingMode).add(key).add(nonce).add(timestamp);
 
         ProofOfWorkRequest req = ProofOfWorkRequest.newBuilder()
                 .setPublicKey(ByteString.copyFrom(key.getEncoded()))
                 .setNonce(nonce)
                 .setTimestamp(timestamp)
-                .setSignature(ByteString.copyFrom(signature))
+                .setSignature(sign(m))
+                .putAllMacs(frontend.sessionMacs(m))
+                .setSigningMode(signingMode.getVersion())
                 .build();
 
         return frontend.proofOfWork(req);
     }
 
     private Map<String, Long> generateProofOfWorks(List<ProofOfWorkResponse> responses) {
-        Map<String, Long> challenges = new HashMap<>();
-
-        for (ProofOfWorkResponse res : responses) {
-
-            String sName = res.getServerName();
-            byte[] powChallenge = crypto.byteStringToByteArray(res.getChallenge());
+        Map<String, byte[]> challenges = new HashMap<>();
 
-            long pow = crypto.generateProofOfWork(powChallenge);
+        for (ProofOfWorkResponse res : responses)
+            challenges.put(res.getServerName(), crypto.byteStringToByteArray(res.getChallenge()));
 
-            challenges.put(sName, pow);
-        }
-
-        return challenges;
+        return crypto.generateProofOfWorks(challenges);
     }
 
     private String handleError(StatusRuntimeException e) {
@@ -430,10 +584,9 @@ public class Client {
         PublicKey clientKey = crypto.getPublicKey(this.username);
         PublicKey checkKey = crypto.getPublicKey(checkAccountName);
 
-        String message = clientKey.toString() + checkKey + nonce + timestamp + res.getPendingTransactionsList()
-                + res.getBalance() + res.getWid() + Arrays.toString(crypto.byteStringToByteArray(res.getPairSignature()));
-
-        byte[] signature = crypto.encrypt(this.username, message);
+        SignaturePayload message = crypto.payload(signingMode).add(clientKey).add(checkKey).add(nonce).add(timestamp)
+                .add(res.getPendingTransactionsList()).add(res.getBalance()).add(res.getWid())
+                .add(crypto.byteStringToByteArray(res.getPairSignature()));
 
         CheckAccountWriteBackRequest req = CheckAccountWriteBackRequest.newBuilder()
                 .setClientKey(ByteString.copyFrom(clientKey.getEncoded()))
@@ -444,13 +597,23 @@ public class Client {
                 .setBalance(res.getBalance())
                 .setWid(res.getWid())
                 .setPairSign(res.getPairSignature())
-                .setSignature(ByteString.copyFrom(signature))
+                .setSignature(sign(message))
+                .putAllMacs(frontend.sessionMacs(message))
+                .setSigningMode(signingMode.getVersion())
                 .build();
 
         frontend.checkAccountWriteBack(req);
     }
 
     private CheckAccountResponse getCheckAccountResponse(String username) throws AccountDoesNotExistsException {
+        return getCheckAccountResponse(username, 0, 0);
+    }
+
+    /**
+     * @param limit at most this many pending transactions, 0 for all of them.
+     * @param cursor pending transactions to skip.
+     */
+    private CheckAccountResponse getCheckAccountResponse(String username, int limit, int cursor) throws AccountDoesNotExistsException {
         long nonce = crypto.generateNonce();
         long timestamp = crypto.generateTimestamp();
 
@@ -459,7 +622,10 @@ public class Client {
 
         if (key == null || clientKey == null) throw new AccountDoesNotExistsException();
 
-        String m = clientKey.toString() + key + nonce + timestamp + (this.rid + 1);
+        SignaturePayload m = crypto.payload(signingMode).add(clientKey).add(key).add(nonce).add(timestamp).add(this.rid + 1);
+
+        if (limit != 0 || cursor != 0)
+            m.add(limit).add(cursor);
 
         CheckAccountRequest checkReq = CheckAccountRequest.newBuilder()
                 .setClientKey(ByteString.copyFrom(clientKey.getEncoded()))
@@ -467,7 +633,11 @@ public class Client {
                 .setNonce(nonce)
                 .setTimestamp(timestamp)
                 .setRid(this.rid + 1)
-                .setSignature(ByteString.copyFrom(crypto.encrypt(this.username, m)))
+                .setSignature(sign(m))
+                .putAllMacs(frontend.sessionMacs(m))
+                .setSigningMode(signingMode.getVersion())
+                .setLimit(limit)
+                .setCursor(cursor)
                 .build();
 
         return frontend.checkAccount(checkReq);
@@ -476,4 +646,21 @@ public class Client {
     void close() {
         frontend.close();
     }
-}
\ No newline at end of file
+
+
+    /**
+     * An account's history as of its last audit and its root, see Crypto.chain.
+     */
+    private static class AuditedHistory {
+
+        private static final AuditedHistory EMPTY = new AuditedHistory(Collections.emptyList(), new byte[0]);
+
+        private final List<Transaction> transactions;
+        private final byte[] root;
+
+        private AuditedHistory(List<Transaction> transactions, byte[] root) {
+            this.transactions = transactions;
+            this.root = root;
+        }
+    }
+}
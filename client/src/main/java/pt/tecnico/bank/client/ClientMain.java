@@ -54,6 +54,7 @@ public class ClientMain {
                 }
 
                 client = new Client(username, password, nByzantineServers);
+                client.open_sessions();
                 client.get_rid();
 
                 while(loggedIn){
@@ -3,24 +3,33 @@ package pt.tecnico.bank.client.frontend;
 import com.google.protobuf.ByteString;
 import io.grpc.*;
 import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import pt.tecnico.bank.client.exceptions.DefaultErrorException;
 import pt.tecnico.bank.crypto.Crypto;
+import pt.tecnico.bank.crypto.SignaturePayload;
+import pt.tecnico.bank.crypto.SigningMode;
 import pt.tecnico.bank.server.grpc.Server.*;
 import pt.tecnico.bank.server.grpc.ServerServiceGrpc;
 import pt.tecnico.bank.server.grpc.ServerServiceGrpc.ServerServiceStub;
 
+import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 
 public class ClientServerFrontend implements AutoCloseable {
 
+    private static final String INVALID_SESSION = "ERROR: Unknown or expired session.";
+
     private final List<ManagedChannel> channels;
     private final Map<String, ServerServiceStub> stubs;
     private final Crypto crypto;
     private final int byzantineQuorum;
+    private final Map<String, ClientSession> sessions = new ConcurrentHashMap<>();
 
     public ClientServerFrontend(int nByzantineServers, Crypto crypto) {
         this.stubs = new HashMap<>();
@@ -51,7 +60,7 @@ public class ClientServerFrontend implements AutoCloseable {
             throw new StatusRuntimeException(Status.INTERNAL.withDescription(exceptionsHandler(exceptions, -1)));
         }
 
-        getOpenAccountResponse(resCol);
+        getOpenAccountResponse(SigningMode.fromVersion(request.getSigningMode()), resCol);
     }
 
     private void openAccountWorker(OpenAccountRequest request, ResponseCollector resCol, ResponseCollector exceptions, CountDownLatch finishLatch, String sName) {
@@ -66,7 +75,7 @@ public class ClientServerFrontend implements AutoCloseable {
         }
     }
 
-    private void getOpenAccountResponse(ResponseCollector resCol) {
+    private void getOpenAccountResponse(SigningMode mode, ResponseCollector resCol) {
         List<OpenAccountResponse> openAccountResponses = new ArrayList<>();
 
         resCol.responses.keySet().forEach(sName -> {
@@ -78,7 +87,7 @@ public class ClientServerFrontend implements AutoCloseable {
 
             String username = res.getUsername();
 
-            String message = username + pubKey.toString();
+            SignaturePayload message = crypto.payload(mode).add(username).add(pubKey);
 
             if (crypto.validateMessage(crypto.getPublicKey(sName), message, newSignature))
                 openAccountResponses.add(res);
@@ -106,7 +115,7 @@ public class ClientServerFrontend implements AutoCloseable {
             throw new StatusRuntimeException(Status.INTERNAL.withDescription(exceptionsHandler(exceptions, request.getNonce())));
         }
 
-        getSendAmountResponse(request.getNonce(), request.getTransaction().getWid(), resCol);
+        getSendAmountResponse(request.getMacsMap(), SigningMode.fromVersion(request.getSigningMode()), request.getNonce(), request.getTransaction().getWid(), resCol);
 
     }
 
@@ -122,7 +131,7 @@ public class ClientServerFrontend implements AutoCloseable {
         }
     }
 
-    private void getSendAmountResponse(long nonce, int myWid, ResponseCollector resCol) {
+    private void getSendAmountResponse(Map<String, SessionMac> macs, SigningMode mode, long nonce, int myWid, ResponseCollector resCol) {
         List<SendAmountResponse> sendAmountResponses = new ArrayList<>();
 
         resCol.responses.keySet().forEach(sName -> {
@@ -132,11 +141,10 @@ public class ClientServerFrontend implements AutoCloseable {
             PublicKey pubKey = crypto.bytesToKey(res.getPublicKey());
             long newNonce = res.getNonce();
             int wid = res.getWid();
-            byte[] newSignature = crypto.byteStringToByteArray(res.getSignature());
 
-            String newMessage = pubKey.toString() + newNonce + wid;
+            SignaturePayload newMessage = crypto.payload(mode).add(pubKey).add(newNonce).add(wid);
 
-            if (crypto.validateMessage(crypto.getPublicKey(sName), newMessage, newSignature)
+            if (validateResponse(macs, sName, newMessage, res.getSignature())
                     && nonce + 1 == newNonce
                     && wid == myWid
             )
@@ -165,7 +173,8 @@ public class ClientServerFrontend implements AutoCloseable {
             throw new StatusRuntimeException(Status.INTERNAL.withDescription(exceptionsHandler(exceptions, request.getNonce())));
         }
 
-        return getCheckAccountResponse(request.getNonce(), request.getRid(), request.getCheckKey(), resCol);
+        return getCheckAccountResponse(request.getMacsMap(), SigningMode.fromVersion(request.getSigningMode()), request.getNonce(), request.getRid(), request.getCheckKey(),
+                request.getLimit(), request.getCursor(), resCol);
     }
 
     private void checkAccountWorker(CheckAccountRequest request, ResponseCollector resCol, ResponseCollector exceptions, CountDownLatch finishLatch, String sName) {
@@ -180,7 +189,10 @@ public class ClientServerFrontend implements AutoCloseable {
         }
     }
 
-    private CheckAccountResponse getCheckAccountResponse(long nonce, int myRid, ByteString checkKey, ResponseCollector resCol) {
+    private CheckAccountResponse getCheckAccountResponse(
+            Map<String, SessionMac> macs, SigningMode mode, long nonce, int myRid, ByteString checkKey, int limit, int cursor,
+            ResponseCollector resCol
+    ) {
         List<CheckAccountResponse> checkAccountResponses = new ArrayList<>();
 
         PublicKey chKey = crypto.bytesToKey(checkKey);
@@ -196,16 +208,23 @@ public class ClientServerFrontend implements AutoCloseable {
             int balance = res.getBalance();
             int wid = res.getWid();
             byte[] pairSig = crypto.byteStringToByteArray(res.getPairSignature());
-            byte[] newSignature = crypto.byteStringToByteArray(res.getSignature());
 
-            String newMessage = pendingTransactions.toString() + newNonce + adebProofs + rid + balance + wid + Arrays.toString(pairSig);
+            SignaturePayload newMessage = crypto.payload(mode).add(pendingTransactions).add(newNonce).add(adebProofs).add(rid)
+                    .add(balance).add(wid).add(pairSig);
+
+            boolean paged = limit != 0 || cursor != 0;
+
+            if (paged)
+                newMessage.add(limit).add(cursor).add(res.getPendingCount());
 
-            if (crypto.validateMessage(crypto.getPublicKey(sName), newMessage, newSignature)
+            if (validateResponse(macs, sName, newMessage, res.getSignature())
+                    && (!paged || ((limit == 0 || pendingTransactions.size() <= limit)
+                            && res.getPendingCount() >= cursor + pendingTransactions.size()))
                     && crypto.validateMessage(chKey, String.valueOf(wid) + balance, pairSig)
                     && nonce + 1 == newNonce
                     && myRid == rid
                     && validateAdebProof(adebProofs, wid)
-                    && validateTransactions(pendingTransactions, wid, true)
+                    && validatePendingTransactions(pendingTransactions)
             )
                 checkAccountResponses.add(res);
 
@@ -234,7 +253,7 @@ public class ClientServerFrontend implements AutoCloseable {
             throw new StatusRuntimeException(Status.INTERNAL.withDescription(exceptionsHandler(exceptions, request.getNonce())));
         }
 
-        getReceiveAmountResponse(request.getNonce(), request.getWid(), resCol);
+        getReceiveAmountResponse(request.getMacsMap(), SigningMode.fromVersion(request.getSigningMode()), request.getNonce(), request.getWid(), resCol);
     }
 
     private void receiveAmountWorker(ReceiveAmountRequest request, ResponseCollector resCol, ResponseCollector exceptions, CountDownLatch finishLatch, String sName) {
@@ -249,7 +268,7 @@ public class ClientServerFrontend implements AutoCloseable {
         }
     }
 
-    private void getReceiveAmountResponse(long nonce, int myWid, ResponseCollector resCol) {
+    private void getReceiveAmountResponse(Map<String, SessionMac> macs, SigningMode mode, long nonce, int myWid, ResponseCollector resCol) {
         List<ReceiveAmountResponse> receiveAmountResponses = new ArrayList<>();
 
         resCol.responses.keySet().forEach(sName -> {
@@ -260,11 +279,9 @@ public class ClientServerFrontend implements AutoCloseable {
             long newNonce = res.getNonce();
             int wid = res.getWid();
 
-            byte[] newSignature = crypto.byteStringToByteArray(res.getSignature());
-
-            String newMessage = pubKey.toString() + newNonce + wid;
+            SignaturePayload newMessage = crypto.payload(mode).add(pubKey).add(newNonce).add(wid);
 
-            if (crypto.validateMessage(crypto.getPublicKey(sName), newMessage, newSignature)
+            if (validateResponse(macs, sName, newMessage, res.getSignature())
                     && nonce + 1 == newNonce
                     && wid == myWid
             )
@@ -294,7 +311,7 @@ public class ClientServerFrontend implements AutoCloseable {
             throw new StatusRuntimeException(Status.INTERNAL.withDescription(exceptionsHandler(exceptions, request.getNonce())));
 
 
-        return getProofOfWorkResponse(request.getNonce(), resCol);
+        return getProofOfWorkResponse(request.getMacsMap(), SigningMode.fromVersion(request.getSigningMode()), request.getNonce(), resCol);
     }
 
     private void powWorker(ProofOfWorkRequest request, ResponseCollector resCol, ResponseCollector exceptions, CountDownLatch finishLatch, String sName) {
@@ -309,7 +326,7 @@ public class ClientServerFrontend implements AutoCloseable {
         }
     }
 
-    private List<ProofOfWorkResponse> getProofOfWorkResponse(long nonce, ResponseCollector resCol) {
+    private List<ProofOfWorkResponse> getProofOfWorkResponse(Map<String, SessionMac> macs, SigningMode mode, long nonce, ResponseCollector resCol) {
         List<ProofOfWorkResponse> powResponses = new ArrayList<>();
 
         resCol.responses.keySet().forEach(sName -> {
@@ -321,11 +338,9 @@ public class ClientServerFrontend implements AutoCloseable {
             String serverName = res.getServerName();
             byte[] challenge = crypto.byteStringToByteArray(res.getChallenge());
 
-            byte[] newSignature = crypto.byteStringToByteArray(res.getSignature());
-
-            String newMessage = key.toString() + newNonce + serverName + Arrays.toString(challenge);
+            SignaturePayload newMessage = crypto.payload(mode).add(key).add(newNonce).add(serverName).add(challenge);
 
-            if (crypto.validateMessage(crypto.getPublicKey(sName), newMessage, newSignature) && nonce + 1 == newNonce
+            if (validateResponse(macs, sName, newMessage, res.getSignature()) && nonce + 1 == newNonce
             )
                 powResponses.add(res);
 
@@ -338,13 +353,19 @@ public class ClientServerFrontend implements AutoCloseable {
     }
 
 
-    public AuditResponse audit(AuditRequest request) {
+    /**
+     * Audits an account with its history streamed in chunks that are checked as they arrive. The response is put back
+     * together from a server's chunks and has no signature of its own, every chunk having been checked on its way in.
+     * @param anchor the audited account's transaction with wid request.since, the last one the client already has.
+     * @param root the audited account's history root after the anchor.
+     */
+    public AuditResponse auditStream(AuditRequest request, Transaction anchor, byte[] root) {
 
         ResponseCollector resCol = new ResponseCollector();
         ResponseCollector exceptions = new ResponseCollector();
         CountDownLatch finishLatch = new CountDownLatch(byzantineQuorum);
 
-        this.stubs.keySet().forEach(sName -> auditWorker(request, resCol, exceptions, finishLatch, sName));
+        this.stubs.keySet().forEach(sName -> auditStreamWorker(request, anchor, root, resCol, exceptions, finishLatch, sName));
 
         await(finishLatch);
 
@@ -354,14 +375,21 @@ public class ClientServerFrontend implements AutoCloseable {
             throw new StatusRuntimeException(Status.INTERNAL.withDescription(exceptionsHandler(exceptions, request.getNonce())));
         }
 
-        return getAuditResponse(request.getNonce(), request.getRid(), resCol);
+        if (resCol.responses.isEmpty())
+            throw new DefaultErrorException();
+
+        return (AuditResponse) resCol.responses.values().iterator().next();
     }
 
-    private void auditWorker(AuditRequest request, ResponseCollector resCol, ResponseCollector exceptions, CountDownLatch finishLatch, String sName) {
+    private void auditStreamWorker(
+            AuditRequest request, Transaction anchor, byte[] root, ResponseCollector resCol, ResponseCollector exceptions,
+            CountDownLatch finishLatch, String sName
+    ) {
         while (true) {
             try {
-                stubs.get(sName).withDeadlineAfter(10, TimeUnit.SECONDS)
-                        .audit(request, new ClientObserver<>(resCol, exceptions, finishLatch, sName));
+                // the deadline is for the whole stream, long histories take longer than a single response
+                stubs.get(sName).withDeadlineAfter(60, TimeUnit.SECONDS)
+                        .auditStream(request, new AuditChunkObserver(request, anchor, root, resCol, exceptions, finishLatch, sName));
                 break;
             } catch (StatusRuntimeException sre) {
                 hasDroppedOrThrowException(sre);
@@ -369,39 +397,6 @@ public class ClientServerFrontend implements AutoCloseable {
         }
     }
 
-    private AuditResponse getAuditResponse(long nonce, int myRid, ResponseCollector resCol) {
-        List<AuditResponse> auditResponses = new ArrayList<>();
-
-        resCol.responses.keySet().forEach(sName -> {
-
-            AuditResponse res = (AuditResponse) resCol.responses.get(sName);
-
-            List<Transaction> transactions = res.getTransactionsList();
-            long newNonce = res.getNonce();
-            int rid = res.getRid();
-            List<AdebProof> adebProofs = res.getAdebProofsList();
-            byte[] newSignature = crypto.byteStringToByteArray(res.getSignature());
-
-            String newMessage = transactions.toString() + newNonce + adebProofs + rid;
-
-            int wid = transactions.isEmpty() ? 0 : transactions.get(transactions.size() - 1).getWid();
-
-            if (crypto.validateMessage(crypto.getPublicKey(sName), newMessage, newSignature)
-                    && nonce + 1 == newNonce
-                    && myRid == rid
-                    && validateAdebProof(adebProofs, wid)
-                    && validateTransactions(transactions, wid, false)
-            )
-                auditResponses.add(res);
-
-        });
-
-        if (auditResponses.isEmpty())
-            throw new DefaultErrorException();
-
-        return auditResponses.get(0);
-    }
-
 
     public void checkAccountWriteBack(CheckAccountWriteBackRequest request) {
 
@@ -419,7 +414,7 @@ public class ClientServerFrontend implements AutoCloseable {
             throw new StatusRuntimeException(Status.INTERNAL.withDescription(exceptionsHandler(exceptions, request.getNonce())));
         }
 
-        getCheckAccountWriteBackResponse(request.getNonce(), resCol);
+        getCheckAccountWriteBackResponse(request.getMacsMap(), SigningMode.fromVersion(request.getSigningMode()), request.getNonce(), resCol);
     }
 
     private void checkAccountWriteBackWorker(CheckAccountWriteBackRequest request, ResponseCollector resCol, ResponseCollector exceptions, CountDownLatch finishLatch, String sName) {
@@ -434,7 +429,7 @@ public class ClientServerFrontend implements AutoCloseable {
         }
     }
 
-    private void getCheckAccountWriteBackResponse(long nonce, ResponseCollector resCol) {
+    private void getCheckAccountWriteBackResponse(Map<String, SessionMac> macs, SigningMode mode, long nonce, ResponseCollector resCol) {
         List<CheckAccountWriteBackResponse> checkAccountWriteBackResponses = new ArrayList<>();
 
         resCol.responses.keySet().forEach(sName -> {
@@ -443,11 +438,10 @@ public class ClientServerFrontend implements AutoCloseable {
 
             PublicKey publicKey = crypto.bytesToKey(res.getPublicKey());
             long newNonce = res.getNonce();
-            byte[] newSignature = crypto.byteStringToByteArray(res.getSignature());
 
-            String newMessage = publicKey.toString() + newNonce;
+            SignaturePayload newMessage = crypto.payload(mode).add(publicKey).add(newNonce);
 
-            if (crypto.validateMessage(crypto.getPublicKey(sName), newMessage, newSignature)
+            if (validateResponse(macs, sName, newMessage, res.getSignature())
                     && nonce + 1 == newNonce
             )
                 checkAccountWriteBackResponses.add(res);
@@ -475,7 +469,7 @@ public class ClientServerFrontend implements AutoCloseable {
             throw new StatusRuntimeException(Status.INTERNAL.withDescription(exceptionsHandler(exceptions, request.getNonce())));
         }
 
-        getAuditWriteBackResponse(request.getNonce(), resCol);
+        getAuditWriteBackResponse(request.getMacsMap(), SigningMode.fromVersion(request.getSigningMode()), request.getNonce(), resCol);
     }
 
     private void auditWriteBackWorker(AuditWriteBackRequest request, ResponseCollector resCol, ResponseCollector exceptions, CountDownLatch finishLatch, String sName) {
@@ -490,7 +484,7 @@ public class ClientServerFrontend implements AutoCloseable {
         }
     }
 
-    private void getAuditWriteBackResponse(long nonce, ResponseCollector resCol) {
+    private void getAuditWriteBackResponse(Map<String, SessionMac> macs, SigningMode mode, long nonce, ResponseCollector resCol) {
         List<AuditWriteBackResponse> auditWriteBackResponses = new ArrayList<>();
 
         resCol.responses.keySet().forEach(sName -> {
@@ -499,11 +493,10 @@ public class ClientServerFrontend implements AutoCloseable {
 
             PublicKey publicKey = crypto.bytesToKey(res.getPublicKey());
             long newNonce = res.getNonce();
-            byte[] newSignature = crypto.byteStringToByteArray(res.getSignature());
 
-            String newMessage = publicKey.toString() + newNonce;
+            SignaturePayload newMessage = crypto.payload(mode).add(publicKey).add(newNonce);
 
-            if (crypto.validateMessage(crypto.getPublicKey(sName), newMessage, newSignature)
+            if (validateResponse(macs, sName, newMessage, res.getSignature())
                     && nonce + 1 == newNonce
             )
                 auditWriteBackResponses.add(res);
@@ -531,7 +524,7 @@ public class ClientServerFrontend implements AutoCloseable {
             throw new StatusRuntimeException(Status.INTERNAL.withDescription(exceptionsHandler(exceptions, request.getNonce())));
 
 
-        return getRidResponse(request.getNonce(), resCol);
+        return getRidResponse(request.getMacsMap(), SigningMode.fromVersion(request.getSigningMode()), request.getNonce(), resCol);
     }
 
     private void getRidWorker(RidRequest request, ResponseCollector resCol, ResponseCollector exceptions, CountDownLatch finishLatch, String sName) {
@@ -546,7 +539,7 @@ public class ClientServerFrontend implements AutoCloseable {
         }
     }
 
-    private RidResponse getRidResponse(long nonce, ResponseCollector resCol) {
+    private RidResponse getRidResponse(Map<String, SessionMac> macs, SigningMode mode, long nonce, ResponseCollector resCol) {
         List<RidResponse> ridResponses = new ArrayList<>();
 
         resCol.responses.keySet().forEach(sName -> {
@@ -557,11 +550,9 @@ public class ClientServerFrontend implements AutoCloseable {
             long newNonce = res.getNonce();
             int rid = res.getRid();
 
-            byte[] newSignature = crypto.byteStringToByteArray(res.getSignature());
-
-            String newMessage = key.toString() + newNonce + rid;
+            SignaturePayload newMessage = crypto.payload(mode).add(key).add(newNonce).add(rid);
 
-            if (crypto.validateMessage(crypto.getPublicKey(sName), newMessage, newSignature) && nonce + 1 == newNonce)
+            if (validateResponse(macs, sName, newMessage, res.getSignature()) && nonce + 1 == newNonce)
                 ridResponses.add(res);
 
         });
@@ -574,7 +565,123 @@ public class ClientServerFrontend implements AutoCloseable {
     }
 
 
+    /**
+     * Opens a session with every server that answers in time, the others keep being sent signed requests.
+     * @return the number of sessions opened.
+     */
+    public int openSession(OpenSessionRequest request, PrivateKey ephemeralKey) {
+
+        ResponseCollector resCol = new ResponseCollector();
+        ResponseCollector exceptions = new ResponseCollector();
+        CountDownLatch finishLatch = new CountDownLatch(byzantineQuorum);
+
+        this.stubs.keySet().forEach(sName -> openSessionWorker(request, resCol, exceptions, finishLatch, sName));
+
+        await(finishLatch);
+
+        checkServerStatus(resCol, exceptions);
+
+        if (exceptions.responses.size() == this.byzantineQuorum)
+            throw new StatusRuntimeException(Status.INTERNAL.withDescription(exceptionsHandler(exceptions, request.getNonce())));
+
+
+        return getOpenSessionResponse(SigningMode.fromVersion(request.getSigningMode()), request.getNonce(), ephemeralKey, resCol);
+    }
+
+    private void openSessionWorker(OpenSessionRequest request, ResponseCollector resCol, ResponseCollector exceptions, CountDownLatch finishLatch, String sName) {
+        while (true) {
+            try {
+                stubs.get(sName).withDeadlineAfter(10, TimeUnit.SECONDS)
+                        .openSession(request, new ClientObserver<>(resCol, exceptions, finishLatch, sName));
+                break;
+            } catch (StatusRuntimeException sre) {
+                hasDroppedOrThrowException(sre);
+            }
+        }
+    }
+
+    private int getOpenSessionResponse(SigningMode mode, long nonce, PrivateKey ephemeralKey, ResponseCollector resCol) {
+        int opened = 0;
+
+        for (String sName : resCol.responses.keySet()) {
+
+            OpenSessionResponse res = (OpenSessionResponse) resCol.responses.get(sName);
+
+            PublicKey key = crypto.bytesToKey(res.getPublicKey());
+            long newNonce = res.getNonce();
+            String serverName = res.getServerName();
+            byte[] serverEphemeral = res.getEphemeralKey().toByteArray();
+
+            byte[] newSignature = crypto.byteStringToByteArray(res.getSignature());
+
+            SignaturePayload newMessage = crypto.payload(mode).add(key).add(newNonce).add(serverName).add(serverEphemeral)
+                    .add(res.getSessionId()).add(res.getExpiresAt());
+
+            if (!crypto.validateMessage(crypto.getPublicKey(sName), newMessage, newSignature)
+                    || nonce + 1 != newNonce
+                    || !sName.equals(serverName)
+            )
+                continue;
+
+            byte[] sessionKey = crypto.deriveSessionKey(ephemeralKey, serverEphemeral, sName);
+
+            if (sessionKey != null) {
+                this.sessions.put(sName, new ClientSession(res.getSessionId(), sessionKey, res.getExpiresAt()));
+                opened++;
+            }
+        }
+
+        if (opened == 0)
+            throw new DefaultErrorException();
+
+        return opened;
+    }
+
+    /**
+     * Macs of the message for every server a session is open with.
+     */
+    public Map<String, SessionMac> sessionMacs(SignaturePayload message) {
+        Map<String, SessionMac> macs = new HashMap<>();
+
+        this.sessions.forEach((sName, session) -> {
+            if (!session.isExpired())
+                macs.put(sName, SessionMac.newBuilder()
+                        .setSessionId(session.getId())
+                        .setMac(ByteString.copyFrom(crypto.mac(session.getKey(), message)))
+                        .build());
+        });
+
+        return macs;
+    }
+
+    /**
+     * True if every server can authenticate a request by its mac alone, so it does not need to be signed.
+     */
+    public boolean hasSessions() {
+        for (String sName : this.stubs.keySet()) {
+            ClientSession session = this.sessions.get(sName);
+
+            if (session == null || session.isExpired())
+                return false;
+        }
+
+        return true;
+    }
+
+
     // aux
+    private boolean validateResponse(Map<String, SessionMac> macs, String sName, SignaturePayload message, ByteString signature) {
+        SessionMac sessionMac = macs.get(sName);
+
+        if (sessionMac == null)
+            return crypto.validateMessage(crypto.getPublicKey(sName), message, crypto.byteStringToByteArray(signature));
+
+        ClientSession session = this.sessions.get(sName);
+
+        return session != null && session.getId() == sessionMac.getSessionId()
+                && crypto.validateMac(session.getKey(), message, signature.toByteArray());
+    }
+
     private void hasDroppedOrThrowException(StatusRuntimeException sre) {
         if (sre.getStatus().getCode() == Status.DEADLINE_EXCEEDED.getCode())
             System.out.println("Request dropped.\nResending...");
@@ -609,35 +716,205 @@ public class ClientServerFrontend implements AutoCloseable {
         return !setToReturn.isEmpty();
     }
 
-    private boolean validateTransactions(List<Transaction> transactions, int wid, boolean isPending) {
+    /**
+     * Pending transactions are signed by their senders with the senders' wids, they say nothing about this account's wid.
+     */
+    private boolean validatePendingTransactions(List<Transaction> transactions) {
 
-        int checkWid = 1;
+        for (Transaction transaction : transactions)
+            if (!validateTransactionSignature(transaction))
+                return false;
 
-        for (Transaction transaction : transactions) {
+        return true;
+    }
+
+    private boolean validateTransactionSignature(Transaction transaction) {
+
+        int amount = transaction.getAmount();
+        String senderName = transaction.getSenderUsername();
+        String receiverName = transaction.getReceiverUsername();
+        PublicKey senderKey = crypto.bytesToKey(transaction.getSenderKey());
+        PublicKey receiverKey = crypto.bytesToKey(transaction.getReceiverKey());
+        int transactionWid = transaction.getWid();
+        boolean isSent = transaction.getSent();
+        byte[] newSignature = crypto.byteStringToByteArray(transaction.getSignature());
+
+        String newMessage = amount + senderName + receiverName + senderKey + receiverKey + transactionWid + isSent;
+
+        PublicKey key = isSent ? senderKey : receiverKey;
+
+        return crypto.validateMessage(key, newMessage, newSignature);
+    }
+
+    /**
+     * Checks a streamed audit one chunk at a time and puts the response back together. Chunks are asked for one at a
+     * time, and the stream is cancelled at the first one that doesn't check out.
+     */
+    private class AuditChunkObserver implements ClientResponseObserver<AuditRequest, AuditChunk> {
+
+        private final AuditRequest request;
+        private final Transaction anchor;
+        private final PublicKey auditKey;
+        private final SigningMode mode;
+        private final ResponseCollector resCol;
+        private final ResponseCollector exceptions;
+        private final CountDownLatch finishLatch;
+        private final String sName;
+
+        private final AuditResponse.Builder response = AuditResponse.newBuilder();
+        // transactions up to historyWid, waiting for the root there to be checked against the history signature
+        private final List<Transaction> unchecked = new ArrayList<>();
+
+        private ClientCallStreamObserver<AuditRequest> call;
+        private byte[] root;
+        private int historyWid;
+        private int index = 0;
+        private int nextWid;
+        private boolean complete = false;
+        private boolean failed = false;
+
+        private AuditChunkObserver(
+                AuditRequest request, Transaction anchor, byte[] root, ResponseCollector resCol, ResponseCollector exceptions,
+                CountDownLatch finishLatch, String sName
+        ) {
+            this.request = request;
+            this.anchor = anchor;
+            this.root = root;
+            this.auditKey = crypto.bytesToKey(request.getAuditKey());
+            this.mode = SigningMode.fromVersion(request.getSigningMode());
+            this.resCol = resCol;
+            this.exceptions = exceptions;
+            this.finishLatch = finishLatch;
+            this.sName = sName;
+        }
 
-            int amount = transaction.getAmount();
-            String senderName = transaction.getSenderUsername();
-            String receiverName = transaction.getReceiverUsername();
-            PublicKey senderKey = crypto.bytesToKey(transaction.getSenderKey());
-            PublicKey receiverKey = crypto.bytesToKey(transaction.getReceiverKey());
-            int transactionWid = transaction.getWid();
-            boolean isSent = transaction.getSent();
-            byte[] newSignature = crypto.byteStringToByteArray(transaction.getSignature());
+        @Override
+        public void beforeStart(ClientCallStreamObserver<AuditRequest> call) {
+            this.call = call;
+            call.disableAutoRequestWithInitial(1);
+        }
 
-            String newMessage = amount + senderName + receiverName + senderKey + receiverKey + transactionWid + isSent;
+        @Override
+        public void onNext(AuditChunk chunk) {
+            if (failed)
+                return;
 
-            PublicKey key = isSent ? senderKey : receiverKey;
+            if (acceptChunk(chunk)) {
+                call.request(1);
+            } else {
+                failed = true;
+                call.cancel("Invalid audit chunk", null);
+            }
+        }
 
-            if (!crypto.validateMessage(key, newMessage, newSignature))
+        @Override
+        public void onError(Throwable throwable) {
+            if (failed) {
+                finishLatch.countDown();
+                return;
+            }
+
+            if (!Objects.equals(throwable.getMessage(), "UNAVAILABLE: io exception")) {
+                exceptions.addResponse(sName, throwable);
+                finishLatch.countDown();
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            if (complete && !failed)
+                resCol.addResponse(sName, response.build());
+
+            finishLatch.countDown();
+        }
+
+        private boolean acceptChunk(AuditChunk chunk) {
+
+            List<Transaction> transactions = chunk.getTransactionsList();
+            long newNonce = chunk.getNonce();
+            int rid = chunk.getRid();
+
+            SignaturePayload newMessage = crypto.payload(mode).add(transactions).add(newNonce).add(rid).add(chunk.getIndex())
+                    .add(chunk.getSince()).add(chunk.getTotal()).add(chunk.getAnchor()).add(chunk.getAdebProofsList())
+                    .add(chunk.getLast());
+
+            if (complete
+                    || !validateResponse(request.getMacsMap(), sName, newMessage, chunk.getSignature())
+                    || request.getNonce() + 1 != newNonce
+                    || request.getRid() != rid
+                    || chunk.getIndex() != index++
+            )
                 return false;
 
-            if (!isPending && checkWid != transactionWid)
+            if (chunk.getIndex() == 0 && !acceptHeader(chunk))
                 return false;
 
-            checkWid++;
+            for (Transaction transaction : transactions)
+                if (!acceptTransaction(transaction))
+                    return false;
+
+            if (!chunk.getLast())
+                return true;
+
+            complete = true;
+            response.addAllAdebProofs(chunk.getAdebProofsList());
+
+            return nextWid - 1 == response.getTotal() && validateAdebProof(chunk.getAdebProofsList(), response.getTotal());
         }
 
-        return wid == checkWid;
+        // the server's history has to extend ours: same length up to the anchor and the same transaction there
+        private boolean acceptHeader(AuditChunk chunk) {
+
+            int since = request.getSince();
+
+            if (chunk.getSince() != since || (since != 0 && !chunk.getAnchor().equals(anchor)))
+                return false;
+
+            response.setNonce(chunk.getNonce())
+                    .setRid(chunk.getRid())
+                    .setSince(since)
+                    .setTotal(chunk.getTotal())
+                    .setAnchor(chunk.getAnchor())
+                    .setHistoryWid(chunk.getHistoryWid())
+                    .setHistorySignature(chunk.getHistorySignature());
+
+            nextWid = since + 1;
+
+            // a history signature only spares checking transactions that are about to be received
+            boolean usable = chunk.getHistoryWid() > since && chunk.getHistoryWid() <= chunk.getTotal()
+                    && !chunk.getHistorySignature().isEmpty();
+
+            historyWid = usable ? chunk.getHistoryWid() : since;
+
+            return true;
+        }
+
+        private boolean acceptTransaction(Transaction transaction) {
+
+            if (transaction.getWid() != nextWid++)
+                return false;
+
+            response.addTransactions(transaction);
+
+            if (transaction.getWid() > historyWid)
+                return validateTransactionSignature(transaction);
+
+            root = crypto.chain(root, transaction);
+            unchecked.add(transaction);
+
+            if (transaction.getWid() < historyWid)
+                return true;
+
+            boolean covered = crypto.validateMessage(auditKey, crypto.historyPayload(historyWid, root),
+                    response.getHistorySignature().toByteArray());
+
+            for (Transaction uncheckedTransaction : unchecked)
+                if (!covered && !validateTransactionSignature(uncheckedTransaction))
+                    return false;
+
+            unchecked.clear();
+            return true;
+        }
     }
 
     private String exceptionsHandler(ResponseCollector exceptions, long nonce) {
@@ -661,6 +938,10 @@ public class ClientServerFrontend implements AutoCloseable {
 
                     if (crypto.validateMessage(crypto.getPublicKey(sName), message, signature) && nonce + 1 == newNonce) {
                         exceptionResponses.add(errorMsg);
+
+                        // the server lost the session (e.g. it restarted), requests to it are signed again
+                        if (errorMsg.equals(INVALID_SESSION))
+                            this.sessions.remove(sName);
                     }
                 }
             }
@@ -0,0 +1,32 @@
+package pt.tecnico.bank.client.frontend;
+
+/**
+ * Session opened with one server.
+ */
+class ClientSession {
+
+    // stop using a session a bit before the server drops it, so requests in flight do not fail
+    private static final long EXPIRY_MARGIN_SECONDS = 60;
+
+    private final long id;
+    private final byte[] key;
+    private final long expiresAt;
+
+    ClientSession(long id, byte[] key, long expiresAt) {
+        this.id = id;
+        this.key = key;
+        this.expiresAt = expiresAt;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    byte[] getKey() {
+        return key;
+    }
+
+    boolean isExpired() {
+        return System.currentTimeMillis() / 1000 >= expiresAt - EXPIRY_MARGIN_SECONDS;
+    }
+}
@@ -0,0 +1,103 @@
+package pt.tecnico.bank.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory registry of the public keys found in the certificates folder.
+ * Each certificate is parsed once; an entry is refreshed only when the certificate file
+ * is modified (e.g. a server regenerating its keys) and dropped when the file disappears.
+ */
+class CertificateRegistry {
+
+    private final String certPath;
+    private final ConcurrentHashMap<String, Entry> publicKeys = new ConcurrentHashMap<>();
+
+    CertificateRegistry(String certPath) {
+        this.certPath = certPath;
+    }
+
+    PublicKey getPublicKey(String alias) {
+        File file = new File(this.certPath + alias + ".cert");
+        long lastModified = file.lastModified();   // 0 if the file does not exist
+
+        if (lastModified == 0) {
+            publicKeys.remove(alias);
+            return null;
+        }
+
+        Entry entry = publicKeys.get(alias);
+
+        if (entry != null && entry.lastModified == lastModified)
+            return entry.publicKey;
+
+        PublicKey publicKey = loadPublicKey(file);
+
+        if (publicKey != null)
+            publicKeys.put(alias, new Entry(publicKey, lastModified));
+
+        return publicKey;
+    }
+
+    /**
+     * Registers a certificate that was just written to disk by this process.
+     * It is parsed again with the default provider, so the key is the same class (and has the same
+     * toString, which ends up in signed messages) as the one every other process reads from the file.
+     */
+    void register(String alias, X509Certificate certificate) {
+        File file = new File(this.certPath + alias + ".cert");
+
+        try {
+            PublicKey publicKey = loadPublicKey(new ByteArrayInputStream(certificate.getEncoded()));
+
+            if (publicKey != null)
+                publicKeys.put(alias, new Entry(publicKey, file.lastModified()));
+
+        } catch (CertificateEncodingException e) {
+            publicKeys.remove(alias);
+        }
+    }
+
+    private PublicKey loadPublicKey(File file) {
+        try (FileInputStream in = new FileInputStream(file)) {
+            return loadPublicKey(in);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private PublicKey loadPublicKey(InputStream in) {
+
+        try {
+
+            CertificateFactory fac = CertificateFactory.getInstance("X509");
+            X509Certificate cert = (X509Certificate) fac.generateCertificate(in);
+            return cert.getPublicKey();
+
+        } catch (CertificateException e) {
+
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private static class Entry {
+        private final PublicKey publicKey;
+        private final long lastModified;
+
+        private Entry(PublicKey publicKey, long lastModified) {
+            this.publicKey = publicKey;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package pt.tecnico.bank.crypto;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x509.BasicConstraints;
@@ -19,22 +20,38 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.*;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 public class Crypto {
 
+    private static final int PUBLIC_KEY_CACHE_SIZE = 4096;
+
     private final String alias;
     private final String password;
     private final String path;
     private final String certPath;
     private final int proofWorkDifficulty;
+    private final KeyStoreCache keyStoreCache;
+    private final CertificateRegistry certificateRegistry;
+    private final PublicKeyCache publicKeyCache;
+    private final SignatureAlgorithm signatureAlgorithm;
+    private final ProofOfWorkSolver proofOfWorkSolver;
 
     public Crypto(String alias, String password, boolean isClient) {
+        this(alias, password, isClient, SignatureAlgorithm.fromProperty());
+    }
+
+    /**
+     * @param signatureAlgorithm algorithm of the keys this instance generates, any supported key can be verified.
+     */
+    public Crypto(String alias, String password, boolean isClient, SignatureAlgorithm signatureAlgorithm) {
         this.alias = alias;
         this.password = password;
 
@@ -45,27 +62,42 @@ public class Crypto {
         this.certPath = ".." + sep + "crypto" + sep + "Certificates" + sep;
 
         this.proofWorkDifficulty = 2;
+        this.keyStoreCache = new KeyStoreCache(this.path + this.alias + ".jks", password);
+        this.certificateRegistry = new CertificateRegistry(this.certPath);
+        this.publicKeyCache = new PublicKeyCache(PUBLIC_KEY_CACHE_SIZE);
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.proofOfWorkSolver = new ProofOfWorkSolver(ForkJoinPool.commonPool(), this.proofWorkDifficulty);
+    }
+
+
+    public SignaturePayload payload(SigningMode mode) {
+        return new SignaturePayload(mode);
     }
 
 
     public byte[] encrypt(String accountName, String message) {
+        return encrypt(accountName, message.getBytes(StandardCharsets.ISO_8859_1));
+    }
 
-        try {
 
-            KeyStore ks = KeyStore.getInstance("JCEKS");
-            ks.load(new FileInputStream(this.path + this.alias + ".jks"), this.password.toCharArray());
+    public byte[] encrypt(String accountName, SignaturePayload payload) {
+        return encrypt(accountName, payload.toByteArray());
+    }
+
+
+    private byte[] encrypt(String accountName, byte[] message) {
+
+        try {
 
-            PrivateKey privKey = (PrivateKey) ks.getKey(accountName, this.password.toCharArray());
+            PrivateKey privKey = keyStoreCache.getPrivateKey(accountName);
 
             // SIGNATURE
-            Signature sign = Signature.getInstance("SHA256withRSA");
-            sign.initSign(privKey);
+            Signature sign = SignatureEngines.signer(privKey);
 
-            sign.update(message.getBytes(StandardCharsets.ISO_8859_1));
+            sign.update(message);
             return sign.sign();
 
-        } catch (UnrecoverableKeyException | CertificateException | KeyStoreException | IOException
-                | NoSuchAlgorithmException | SignatureException | InvalidKeyException e) {
+        } catch (NoSuchAlgorithmException | SignatureException | InvalidKeyException e) {
 
             e.printStackTrace();
         }
@@ -85,13 +117,10 @@ public class Crypto {
 
         try {
 
-            KeyPairGenerator rsaKeyGen = KeyPairGenerator.getInstance("RSA");
-            rsaKeyGen.initialize(2048);
-
-            KeyPair rsaKeyPair = rsaKeyGen.generateKeyPair();
+            KeyPair keyPair = signatureAlgorithm.generateKeyPair();
 
-            Key pubKey = rsaKeyPair.getPublic();
-            Key privKey = rsaKeyPair.getPrivate();
+            Key pubKey = keyPair.getPublic();
+            Key privKey = keyPair.getPrivate();
 
             KeyStore ks = KeyStore.getInstance("JCEKS");
 
@@ -111,13 +140,14 @@ public class Crypto {
             }
 
             X509Certificate[] certificateChain = new X509Certificate[1];
-            certificateChain[0] = selfSign(rsaKeyPair, accountName);
+            certificateChain[0] = selfSign(keyPair, accountName);
 
             ks.setKeyEntry(accountName, privKey, this.password.toCharArray(), certificateChain);
 
             try (FileOutputStream fos = new FileOutputStream(file)) {
                 ks.store(fos, this.password.toCharArray());
             }
+            keyStoreCache.invalidate();
 
             try (FileOutputStream fos = new FileOutputStream(this.path + "public.key")) {
                 fos.write(pubKey.getEncoded());
@@ -128,7 +158,8 @@ public class Crypto {
             }
             return pubKey;
 
-        } catch (CertificateException | NoSuchAlgorithmException | KeyStoreException | IOException e) {
+        } catch (CertificateException | NoSuchAlgorithmException | InvalidAlgorithmParameterException | KeyStoreException
+                | IOException e) {
 
             e.printStackTrace();
         }
@@ -156,7 +187,7 @@ public class Crypto {
             calendar.add(Calendar.YEAR, 1); // <-- 1 Yr validity
 
             Date endDate = calendar.getTime();
-            String signatureAlgorithm = "SHA256WithRSA"; // <-- Use appropriate signature algorithm based on your keyPair algorithm.
+            String signatureAlgorithm = SignatureAlgorithm.of(keyPair.getPrivate()).getSignatureAlgorithm();
             ContentSigner contentSigner = new JcaContentSignerBuilder(signatureAlgorithm).build(keyPair.getPrivate());
             JcaX509v3CertificateBuilder certBuilder = new JcaX509v3CertificateBuilder(dnName, certSerialNumber, startDate, endDate, dnName, keyPair.getPublic());
 
@@ -172,6 +203,7 @@ public class Crypto {
             try (FileOutputStream out = new FileOutputStream(file)) {
                 out.write(buf);
             }
+            certificateRegistry.register(subjectDN, certificate);
             return certificate;
 
         } catch (CertificateException | IOException | OperatorCreationException e) {
@@ -185,33 +217,72 @@ public class Crypto {
 
 
     public PublicKey getPublicKey(String alias) {
+        return certificateRegistry.getPublicKey(alias);
+    }
+
+
+    public PublicKey bytesToKey(ByteString pubKey) {
+
+        PublicKey cached = publicKeyCache.get(pubKey);
 
-        if (!accountExists(alias)) return null;
+        if (cached != null)
+            return cached;
 
         try {
 
-            CertificateFactory fac = CertificateFactory.getInstance("X509");
-            FileInputStream in = new FileInputStream(this.certPath + alias + ".cert");
-            X509Certificate cert = (X509Certificate) fac.generateCertificate(in);
-            return cert.getPublicKey();
+            byte[] pubKeyBytes = pubKey.toByteArray();
+            SignatureAlgorithm algorithm = SignatureAlgorithm.of(pubKeyBytes);
 
-        } catch (CertificateException | FileNotFoundException e) {
+            if (algorithm == null)
+                return null;
+
+            PublicKey key = KeyFactory.getInstance(algorithm.getKeyAlgorithm()).generatePublic(new X509EncodedKeySpec(pubKeyBytes));
+
+            publicKeyCache.put(pubKey, key);
+            return key;
+
+        } catch (InvalidKeySpecException | NoSuchAlgorithmException | IllegalArgumentException e) {
 
             e.printStackTrace();
         }
+
         return null;
     }
 
 
-    public PublicKey bytesToKey(ByteString pubKey) {
+    public boolean validateMessage(PublicKey key, String message, byte[] signature)  {
+        return validateMessage(key, message.getBytes(StandardCharsets.ISO_8859_1), signature);
+    }
+
+
+    public boolean validateMessage(PublicKey key, SignaturePayload payload, byte[] signature)  {
+        return validateMessage(key, payload.toByteArray(), signature);
+    }
+
+
+    private boolean validateMessage(PublicKey key, byte[] message, byte[] signature)  {
+
+        try {
+
+            Signature sign = SignatureEngines.verifier(key);
+            sign.update(message);
+            return sign.verify(signature);
+
+        } catch (NoSuchAlgorithmException | SignatureException | InvalidKeyException e) {
+
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
+    public byte[] digest(SignaturePayload payload) {
 
         try {
 
-            byte[] pubKeyBytes = new byte[294];
-            pubKey.copyTo(pubKeyBytes, 0);
-            return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(pubKeyBytes));
+            return SignatureEngines.digest().digest(payload.toByteArray());
 
-        } catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
+        } catch (NoSuchAlgorithmException e) {
 
             e.printStackTrace();
         }
@@ -220,31 +291,113 @@ public class Crypto {
     }
 
 
-    public boolean validateMessage(PublicKey key, String message, byte[] signature)  {
+    /**
+     * Root of a hash chained history after one more entry: SHA-256 of the previous root followed by the entry.
+     * The root of an empty history is empty.
+     */
+    public byte[] chain(byte[] root, MessageLite entry) {
+
+        try {
+
+            MessageDigest md = SignatureEngines.digest();
+            md.update(root);
+            md.update(entry.toByteArray());
+            return md.digest();
+
+        } catch (NoSuchAlgorithmException e) {
+
+            e.printStackTrace();
+        }
 
-        Signature sign;
+        return null;
+    }
+
+
+    /**
+     * What an account's owner signs to vouch for its history up to wid.
+     */
+    public SignaturePayload historyPayload(int wid, byte[] root) {
+        return payload(SigningMode.CANONICAL_V1).add(wid).add(root);
+    }
+
+
+    public KeyPair generateSessionKeyPair() {
 
         try {
 
-            sign = Signature.getInstance("SHA256withRSA");
-            sign.initVerify(key);
-            sign.update(message.getBytes(StandardCharsets.ISO_8859_1));
-            return sign.verify(signature);
+            return SessionKeys.generateKeyPair();
 
-        } catch (NoSuchAlgorithmException | SignatureException | InvalidKeyException e) {
+        } catch (NoSuchAlgorithmException e) {
 
             e.printStackTrace();
         }
 
-        return false;
+        return null;
+    }
+
+
+    /**
+     * Session key shared with the owner of peerKey, see SessionKeys.
+     * info binds the key to its use (e.g. the server name), both sides must pass the same value.
+     */
+    public byte[] deriveSessionKey(PrivateKey ownKey, byte[] peerKey, String info) {
+
+        try {
+
+            return SessionKeys.deriveKey(ownKey, peerKey, info.getBytes(StandardCharsets.UTF_8));
+
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException | InvalidKeyException e) {
+
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+
+    public byte[] mac(byte[] sessionKey, String message) {
+        return mac(sessionKey, message.getBytes(StandardCharsets.ISO_8859_1));
     }
 
-    public byte[] byteStringToByteArray(ByteString res) {
 
-        byte[] signature = new byte[256];
-        res.copyTo(signature, 0);
-        return signature;
+    public byte[] mac(byte[] sessionKey, SignaturePayload payload) {
+        return mac(sessionKey, payload.toByteArray());
+    }
+
+
+    private byte[] mac(byte[] sessionKey, byte[] message) {
+
+        try {
+
+            return SessionKeys.hmac(sessionKey, message);
+
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
 
+    public boolean validateMac(byte[] sessionKey, String message, byte[] mac) {
+        return validateMac(sessionKey, message.getBytes(StandardCharsets.ISO_8859_1), mac);
+    }
+
+
+    public boolean validateMac(byte[] sessionKey, SignaturePayload payload, byte[] mac) {
+        return validateMac(sessionKey, payload.toByteArray(), mac);
+    }
+
+
+    private boolean validateMac(byte[] sessionKey, byte[] message, byte[] mac) {
+        byte[] expected = mac(sessionKey, message);
+        return expected != null && MessageDigest.isEqual(expected, mac);
+    }
+
+
+    public byte[] byteStringToByteArray(ByteString res) {
+        return res.toByteArray();
     }
 
     public long generateNonce() {
@@ -257,24 +410,27 @@ public class Crypto {
 
 
     public long generateProofOfWork(byte[] bytes) {
-        long pow = 0L;
-        while (!verifyProofOfWork(bytes, pow)) pow++;
-        return pow;
+        return proofOfWorkSolver.solve(Collections.singletonMap(0, bytes)).getOrDefault(0, -1L);
+    }
+
+
+    /**
+     * Solves all the challenges in parallel, see ProofOfWorkSolver.
+     * @return the proof of work of each challenge, by the same key.
+     */
+    public Map<String, Long> generateProofOfWorks(Map<String, byte[]> challenges) {
+        return proofOfWorkSolver.solve(challenges);
     }
 
     public boolean verifyProofOfWork(byte[] bytes, long pow) {
 
         try {
 
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            MessageDigest md = SignatureEngines.digest();
 
             byte[] hash = md.digest(ByteBuffer.allocate(bytes.length + Long.BYTES).put(bytes).putLong(pow).array());
 
-            for (int i = 0; i < this.proofWorkDifficulty; i++)
-                if (hash[i] != 0)
-                    return false;
-
-            return true;
+            return ProofOfWorkSolver.hasLeadingZeros(hash, this.proofWorkDifficulty);
 
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
@@ -0,0 +1,62 @@
+package pt.tecnico.bank.crypto;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.*;
+import java.security.cert.CertificateException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the private keys of a JCEKS keystore in memory, so the keystore file
+ * is opened and decrypted only once per alias instead of once per signature.
+ */
+class KeyStoreCache {
+
+    private final String ksFile;
+    private final char[] password;
+    private final ConcurrentHashMap<String, PrivateKey> privateKeys = new ConcurrentHashMap<>();
+
+    KeyStoreCache(String ksFile, String password) {
+        this.ksFile = ksFile;
+        this.password = password.toCharArray();
+    }
+
+    PrivateKey getPrivateKey(String alias) {
+        PrivateKey privKey = privateKeys.get(alias);
+
+        if (privKey != null)
+            return privKey;
+
+        privKey = loadPrivateKey(alias);
+
+        if (privKey != null)
+            privateKeys.put(alias, privKey);
+
+        return privKey;
+    }
+
+    /**
+     * Must be called whenever the keystore file is rewritten.
+     */
+    void invalidate() {
+        privateKeys.clear();
+    }
+
+    private PrivateKey loadPrivateKey(String alias) {
+
+        try (FileInputStream fis = new FileInputStream(this.ksFile)) {
+
+            KeyStore ks = KeyStore.getInstance("JCEKS");
+            ks.load(fis, this.password);
+
+            return (PrivateKey) ks.getKey(alias, this.password);
+
+        } catch (UnrecoverableKeyException | CertificateException | KeyStoreException | IOException
+                | NoSuchAlgorithmException e) {
+
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+}
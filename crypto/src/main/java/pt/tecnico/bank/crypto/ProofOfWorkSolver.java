@@ -0,0 +1,138 @@
+package pt.tecnico.bank.crypto;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parallel proof of work search. The nonce space is split in blocks that the workers of a ForkJoinPool take in turns,
+ * each worker hashing its candidates with its own digest and buffer. Several challenges are searched at the same time
+ * on the same pool, so solving one per replica takes about as long as solving the hardest one.
+ */
+class ProofOfWorkSolver {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int BLOCK_SIZE = 1 << 12;
+    private static final long UNSOLVED = -1L;
+
+    private final ForkJoinPool pool;
+    private final int difficulty;
+
+    ProofOfWorkSolver(ForkJoinPool pool, int difficulty) {
+        this.pool = pool;
+        this.difficulty = difficulty;
+    }
+
+    /**
+     * @return a proof of work for each challenge, challenges that could not be solved are left out.
+     */
+    <K> Map<K, Long> solve(Map<K, byte[]> challenges) {
+        int workers = Math.max(1, pool.getParallelism());
+
+        Map<K, Search> searches = new HashMap<>();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+
+        for (Map.Entry<K, byte[]> challenge : challenges.entrySet()) {
+            Search search = new Search(challenge.getValue());
+            searches.put(challenge.getKey(), search);
+
+            for (int i = 0; i < workers; i++)
+                tasks.add(pool.submit(new Worker(search, i, workers)));
+        }
+
+        for (ForkJoinTask<?> task : tasks)
+            task.join();
+
+        Map<K, Long> pows = new HashMap<>();
+
+        for (Map.Entry<K, Search> search : searches.entrySet()) {
+            long pow = search.getValue().result.get();
+
+            if (pow != UNSOLVED)
+                pows.put(search.getKey(), pow);
+        }
+
+        return pows;
+    }
+
+    static boolean hasLeadingZeros(byte[] hash, int difficulty) {
+        for (int i = 0; i < difficulty; i++)
+            if (hash[i] != 0)
+                return false;
+
+        return true;
+    }
+
+    private static class Search {
+        private final byte[] challenge;
+        private final AtomicLong result = new AtomicLong(UNSOLVED);
+
+        Search(byte[] challenge) {
+            this.challenge = challenge;
+        }
+
+        boolean isSolved() {
+            return result.get() != UNSOLVED;
+        }
+    }
+
+    private class Worker extends RecursiveAction {
+
+        private final Search search;
+        private final long firstBlock;
+        private final long stride;
+
+        Worker(Search search, long firstBlock, long stride) {
+            this.search = search;
+            this.firstBlock = firstBlock;
+            this.stride = stride;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+
+                MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+                byte[] hash = new byte[md.getDigestLength()];
+
+                // the challenge followed by the candidate, only the last 8 bytes change between candidates
+                byte[] buffer = Arrays.copyOf(search.challenge, search.challenge.length + Long.BYTES);
+                int offset = search.challenge.length;
+
+                for (long block = firstBlock; !search.isSolved(); block += stride) {
+                    long first = block * BLOCK_SIZE;
+
+                    for (long pow = first; pow < first + BLOCK_SIZE; pow++) {
+                        putLong(buffer, offset, pow);
+                        md.update(buffer);
+                        md.digest(hash, 0, hash.length);
+
+                        if (hasLeadingZeros(hash, difficulty)) {
+                            search.result.compareAndSet(UNSOLVED, pow);
+                            return;
+                        }
+                    }
+                }
+
+            } catch (NoSuchAlgorithmException | DigestException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void putLong(byte[] buffer, int offset, long value) {
+            for (int i = Long.BYTES - 1; i >= 0; i--) {
+                buffer[offset + i] = (byte) value;
+                value >>>= 8;
+            }
+        }
+    }
+}
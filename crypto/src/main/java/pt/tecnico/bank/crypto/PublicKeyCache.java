@@ -0,0 +1,32 @@
+package pt.tecnico.bank.crypto;
+
+import com.google.protobuf.ByteString;
+
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of decoded public keys, indexed by their encoded bytes.
+ */
+class PublicKeyCache {
+
+    private final Map<ByteString, PublicKey> publicKeys;
+
+    PublicKeyCache(int maxEntries) {
+        this.publicKeys = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteString, PublicKey> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    synchronized PublicKey get(ByteString encoded) {
+        return publicKeys.get(encoded);
+    }
+
+    synchronized void put(ByteString encoded, PublicKey publicKey) {
+        publicKeys.put(encoded, publicKey);
+    }
+}
@@ -0,0 +1,69 @@
+package pt.tecnico.bank.crypto;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * Session key material: ephemeral X25519 key pairs, HKDF-SHA256 derivation of the shared secret
+ * and per-thread HMAC-SHA256 engines.
+ */
+class SessionKeys {
+
+    private static final String AGREEMENT_ALGORITHM = "X25519";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] HKDF_SALT = "bank-session-v1".getBytes(StandardCharsets.UTF_8);
+    private static final int KEY_LENGTH = 32;
+
+    private static final ThreadLocal<Mac> macs = new ThreadLocal<>();
+
+    private SessionKeys() {
+    }
+
+    static KeyPair generateKeyPair() throws NoSuchAlgorithmException {
+        return KeyPairGenerator.getInstance(AGREEMENT_ALGORITHM).generateKeyPair();
+    }
+
+    static byte[] deriveKey(PrivateKey ownKey, byte[] peerKey, byte[] info)
+            throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException {
+
+        PublicKey peerPublicKey = KeyFactory.getInstance(AGREEMENT_ALGORITHM).generatePublic(new X509EncodedKeySpec(peerKey));
+
+        KeyAgreement agreement = KeyAgreement.getInstance(AGREEMENT_ALGORITHM);
+        agreement.init(ownKey);
+        agreement.doPhase(peerPublicKey, true);
+        byte[] secret = agreement.generateSecret();
+
+        // HKDF (RFC 5869), one block is enough for a 32 byte key
+        byte[] prk = hmac(HKDF_SALT, secret);
+
+        Mac mac = mac(prk);
+        mac.update(info);
+        mac.update((byte) 1);
+        byte[] okm = mac.doFinal();
+
+        byte[] key = new byte[KEY_LENGTH];
+        System.arraycopy(okm, 0, key, 0, KEY_LENGTH);
+        return key;
+    }
+
+    static byte[] hmac(byte[] key, byte[] message) throws NoSuchAlgorithmException, InvalidKeyException {
+        return mac(key).doFinal(message);
+    }
+
+    private static Mac mac(byte[] key) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = macs.get();
+
+        if (mac == null) {
+            mac = Mac.getInstance(MAC_ALGORITHM);
+            macs.set(mac);
+        }
+
+        mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+        return mac;
+    }
+}
@@ -0,0 +1,92 @@
+package pt.tecnico.bank.crypto;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.edec.EdECObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.security.*;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * Key and signature algorithms accounts can be created with.
+ * New keys use the one named by the crypto.signatureAlgorithm system property (RSA by default);
+ * existing keys are always used with the algorithm they were made for, so accounts of different kinds can coexist.
+ */
+public enum SignatureAlgorithm {
+
+    RSA("RSA", "SHA256withRSA", PKCSObjectIdentifiers.rsaEncryption),
+    ECDSA_P256("EC", "SHA256withECDSA", X9ObjectIdentifiers.id_ecPublicKey),
+    ED25519("Ed25519", "Ed25519", EdECObjectIdentifiers.id_Ed25519);
+
+    static {
+        // Ed25519 is only in the JDK from 15 on, BouncyCastle provides it otherwise
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    private final String keyAlgorithm;
+    private final String signatureAlgorithm;
+    private final ASN1ObjectIdentifier oid;
+
+    SignatureAlgorithm(String keyAlgorithm, String signatureAlgorithm, ASN1ObjectIdentifier oid) {
+        this.keyAlgorithm = keyAlgorithm;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.oid = oid;
+    }
+
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    KeyPair generateKeyPair() throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(keyAlgorithm);
+
+        if (this == RSA)
+            generator.initialize(2048);
+        else if (this == ECDSA_P256)
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+
+        return generator.generateKeyPair();
+    }
+
+    public static SignatureAlgorithm fromProperty() {
+        return valueOf(System.getProperty("crypto.signatureAlgorithm", RSA.name()));
+    }
+
+    /**
+     * @return the algorithm of a key, or null if it is not one of these.
+     */
+    public static SignatureAlgorithm of(Key key) {
+        switch (key.getAlgorithm()) {
+            case "RSA":
+                return RSA;
+            case "EC":
+            case "ECDSA":
+                return ECDSA_P256;
+            case "EdDSA":    // JDK
+            case "Ed25519":  // BouncyCastle
+                return ED25519;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the algorithm of an X.509 encoded public key, or null if it is not one of these.
+     */
+    static SignatureAlgorithm of(byte[] encodedPublicKey) {
+        ASN1ObjectIdentifier keyOid = SubjectPublicKeyInfo.getInstance(encodedPublicKey).getAlgorithm().getAlgorithm();
+
+        for (SignatureAlgorithm algorithm : values())
+            if (algorithm.oid.equals(keyOid))
+                return algorithm;
+
+        return null;
+    }
+}
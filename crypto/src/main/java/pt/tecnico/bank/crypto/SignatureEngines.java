@@ -0,0 +1,86 @@
+package pt.tecnico.bank.crypto;
+
+import java.security.*;
+import java.util.EnumMap;
+
+/**
+ * Per-thread signature and digest engines, one per signature algorithm.
+ * An engine is only re-initialized when it is used with a different key than the previous call,
+ * after sign() or verify() the engine goes back to its initialized state and can be reused directly.
+ */
+class SignatureEngines {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final ThreadLocal<EnumMap<SignatureAlgorithm, Engine>> signers =
+            ThreadLocal.withInitial(() -> new EnumMap<>(SignatureAlgorithm.class));
+    private static final ThreadLocal<EnumMap<SignatureAlgorithm, Engine>> verifiers =
+            ThreadLocal.withInitial(() -> new EnumMap<>(SignatureAlgorithm.class));
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<>();
+
+    private SignatureEngines() {
+    }
+
+    static Signature signer(PrivateKey key) throws NoSuchAlgorithmException, InvalidKeyException {
+        if (key == null)
+            throw new InvalidKeyException("Key must not be null");
+
+        Engine engine = engine(signers, key);
+
+        if (!key.equals(engine.key)) {
+            engine.key = null;
+            engine.signature.initSign(key);
+            engine.key = key;
+        }
+
+        return engine.signature;
+    }
+
+    static Signature verifier(PublicKey key) throws NoSuchAlgorithmException, InvalidKeyException {
+        if (key == null)
+            throw new InvalidKeyException("Key must not be null");
+
+        Engine engine = engine(verifiers, key);
+
+        if (!key.equals(engine.key)) {
+            engine.key = null;
+            engine.signature.initVerify(key);
+            engine.key = key;
+        }
+
+        return engine.signature;
+    }
+
+    static MessageDigest digest() throws NoSuchAlgorithmException {
+        MessageDigest md = digests.get();
+
+        if (md == null) {
+            md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            digests.set(md);
+        }
+
+        md.reset();
+        return md;
+    }
+
+    private static Engine engine(ThreadLocal<EnumMap<SignatureAlgorithm, Engine>> engines, Key key)
+            throws NoSuchAlgorithmException, InvalidKeyException {
+
+        SignatureAlgorithm algorithm = SignatureAlgorithm.of(key);
+
+        if (algorithm == null)
+            throw new InvalidKeyException("Unsupported key algorithm " + key.getAlgorithm());
+
+        Engine engine = engines.get().computeIfAbsent(algorithm, a -> new Engine());
+
+        if (engine.signature == null)
+            engine.signature = Signature.getInstance(algorithm.getSignatureAlgorithm());
+
+        return engine;
+    }
+
+    private static class Engine {
+        private Signature signature;
+        private Key key;
+    }
+}
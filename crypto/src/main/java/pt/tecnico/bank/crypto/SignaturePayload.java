@@ -0,0 +1,140 @@
+package pt.tecnico.bank.crypto;
+
+import com.google.protobuf.MessageLite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds the bytes to be signed from the fields of a message, in the given signing mode.
+ * In STRING mode the result is exactly the old String concatenation of the fields, so both modes
+ * can be built from the same sequence of add() calls.
+ */
+public class SignaturePayload {
+
+    private final SigningMode mode;
+    private final StringBuilder text;
+    private final ByteArrayOutputStream bytes;
+    private final DataOutputStream out;
+
+    SignaturePayload(SigningMode mode) {
+        this.mode = mode;
+
+        if (mode == SigningMode.STRING) {
+            this.text = new StringBuilder();
+            this.bytes = null;
+            this.out = null;
+        } else {
+            this.text = null;
+            this.bytes = new ByteArrayOutputStream();
+            this.out = new DataOutputStream(this.bytes);
+            write(() -> out.writeByte(mode.getVersion()));
+        }
+    }
+
+    public SigningMode getMode() {
+        return mode;
+    }
+
+    public SignaturePayload add(int value) {
+        if (text != null) text.append(value);
+        else write(() -> out.writeInt(value));
+        return this;
+    }
+
+    public SignaturePayload add(long value) {
+        if (text != null) text.append(value);
+        else write(() -> out.writeLong(value));
+        return this;
+    }
+
+    public SignaturePayload add(boolean value) {
+        if (text != null) text.append(value);
+        else write(() -> out.writeBoolean(value));
+        return this;
+    }
+
+    public SignaturePayload add(String value) {
+        if (text != null) text.append(value);
+        else writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+    public SignaturePayload add(byte[] value) {
+        if (text != null) text.append(Arrays.toString(value));
+        else writeBytes(value);
+        return this;
+    }
+
+    public SignaturePayload add(PublicKey key) {
+        if (text != null) text.append(key);
+        else writeBytes(key.getEncoded());
+        return this;
+    }
+
+    public SignaturePayload add(MessageLite message) {
+        if (text != null) text.append(message);
+        else writeBytes(message.toByteArray());
+        return this;
+    }
+
+    public SignaturePayload add(List<? extends MessageLite> messages) {
+        if (text != null) {
+            text.append(messages);
+        } else {
+            write(() -> out.writeInt(messages.size()));
+            messages.forEach(message -> writeBytes(message.toByteArray()));
+        }
+        return this;
+    }
+
+    public SignaturePayload add(Map<String, Long> map) {
+        if (text != null) {
+            text.append(map);
+        } else {
+            Map<String, Long> sorted = new TreeMap<>(map);
+            write(() -> out.writeInt(sorted.size()));
+            sorted.forEach((key, value) -> {
+                writeBytes(key.getBytes(StandardCharsets.UTF_8));
+                write(() -> out.writeLong(value));
+            });
+        }
+        return this;
+    }
+
+    public byte[] toByteArray() {
+        if (text != null)
+            return text.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+        return bytes.toByteArray();
+    }
+
+    // aux
+
+    private void writeBytes(byte[] value) {
+        write(() -> {
+            out.writeInt(value.length);
+            out.write(value);
+        });
+    }
+
+    private void write(Write write) {
+        try {
+            write.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // never happens when writing to memory
+        }
+    }
+
+    private interface Write {
+        void run() throws IOException;
+    }
+}
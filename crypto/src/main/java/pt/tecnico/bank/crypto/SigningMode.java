@@ -0,0 +1,29 @@
+package pt.tecnico.bank.crypto;
+
+/**
+ * How the fields of a signed message are turned into the bytes that are signed.
+ * The version is the value exchanged in the signing_mode field of the requests.
+ */
+public enum SigningMode {
+
+    STRING(0),          // concatenation of the toString() of every field, ISO-8859-1 encoded
+    CANONICAL_V1(1);    // fixed-width numbers, length-prefixed bytes and serialized protobuf messages
+
+    private final int version;
+
+    SigningMode(int version) {
+        this.version = version;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public static SigningMode fromVersion(int version) {
+        for (SigningMode mode : values())
+            if (mode.version == version)
+                return mode;
+
+        return null;
+    }
+}
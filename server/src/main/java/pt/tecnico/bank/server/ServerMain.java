@@ -46,6 +46,7 @@ public class ServerMain {
 
 			// Do not exit the main thread. Wait until server is terminated.
 			server.awaitTermination();
+			serverBackend.shutdown();
 
 		} catch (Exception e) {
 			System.out.println("Internal Server Error: " + e.getMessage());
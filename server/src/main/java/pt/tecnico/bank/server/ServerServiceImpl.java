@@ -1,11 +1,18 @@
 package pt.tecnico.bank.server;
 
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import pt.tecnico.bank.server.domain.ServerBackend;
 import pt.tecnico.bank.server.domain.exceptions.*;
 import pt.tecnico.bank.server.grpc.Server.*;
 import pt.tecnico.bank.server.grpc.ServerServiceGrpc;
 
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static io.grpc.Status.*;
 
 
@@ -29,7 +36,8 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
                             request.getInitBalance(),
                             request.getPairSignature(),
                             request.getPublicKey(),
-                            request.getSignature()
+                            request.getSignature(),
+                            request.getSigningMode()
                     )
             );
 
@@ -41,21 +49,20 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
     }
 
     @Override
-    public synchronized void sendAmount(SendAmountRequest request, StreamObserver<SendAmountResponse> responseObserver) {
+    public void sendAmount(SendAmountRequest request, StreamObserver<SendAmountResponse> responseObserver) {
         try {
 
-            responseObserver.onNext(
-                    serverBackend.sendAmount(
-                            request.getTransaction(),
-                            request.getNonce(),
-                            request.getTimestamp(),
-                            request.getBalance(),
-                            request.getPairSignature(),
-                            request.getSignature()
-                    )
-            );
-
-            responseObserver.onCompleted();
+            reply(serverBackend.sendAmount(
+                    request.getTransaction(),
+                    request.getNonce(),
+                    request.getTimestamp(),
+                    request.getBalance(),
+                    request.getPairSignature(),
+                    request.getSignature(),
+                    request.getSigningMode(),
+                    request.getMacsMap(),
+                    request.getHistorySignature()
+            ), responseObserver);
 
         } catch (ServerStatusRuntimeException e) {
             responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException(e.getTrailers()));
@@ -73,7 +80,11 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
                             request.getNonce(),
                             request.getTimestamp(),
                             request.getRid(),
-                            request.getSignature()
+                            request.getSignature(),
+                            request.getSigningMode(),
+                            request.getMacsMap(),
+                            request.getLimit(),
+                            request.getCursor()
                     )
             );
 
@@ -85,23 +96,25 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
     }
 
     @Override
-    public synchronized void receiveAmount(ReceiveAmountRequest request, StreamObserver<ReceiveAmountResponse> responseObserver) {
+    public void receiveAmount(ReceiveAmountRequest request, StreamObserver<ReceiveAmountResponse> responseObserver) {
         try {
 
-            responseObserver.onNext(
-                    serverBackend.receiveAmount(
-                            request.getPendingTransactionsList(),
-                            request.getPublicKey(),
-                            request.getNonce(),
-                            request.getTimestamp(),
-                            request.getWid(),
-                            request.getBalance(),
-                            request.getPairSignature(),
-                            request.getSignature()
-                    )
-            );
-
-            responseObserver.onCompleted();
+            reply(serverBackend.receiveAmount(
+                    request.getPendingTransactionsList(),
+                    request.getPublicKey(),
+                    request.getNonce(),
+                    request.getTimestamp(),
+                    request.getWid(),
+                    request.getBalance(),
+                    request.getPairSignature(),
+                    request.getSignature(),
+                    request.getSigningMode(),
+                    request.getMacsMap(),
+                    request.getHistorySignature(),
+                    request.getLimit(),
+                    request.getCursor(),
+                    request.getSenderWidsList()
+            ), responseObserver);
 
         } catch (ServerStatusRuntimeException e) {
             responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException(e.getTrailers()));
@@ -120,7 +133,10 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
                             request.getTimestamp(),
                             request.getPowsMap(),
                             request.getRid(),
-                            request.getSignature()
+                            request.getSignature(),
+                            request.getSigningMode(),
+                            request.getMacsMap(),
+                            request.getSince()
                     )
             );
             responseObserver.onCompleted();
@@ -131,23 +147,47 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
     }
 
     @Override
-    public void checkAccountWriteBack(CheckAccountWriteBackRequest request, StreamObserver<CheckAccountWriteBackResponse> responseObserver) {
+    public void auditStream(AuditRequest request, StreamObserver<AuditChunk> responseObserver) {
         try {
 
-            responseObserver.onNext(
-                    serverBackend.checkAccountWriteBack(
+            stream(
+                    serverBackend.auditStream(
                             request.getClientKey(),
-                            request.getCheckKey(),
+                            request.getAuditKey(),
                             request.getNonce(),
                             request.getTimestamp(),
-                            request.getPendingTransactionsList(),
-                            request.getBalance(),
-                            request.getWid(),
-                            request.getPairSign(),
-                            request.getSignature()
-                    )
+                            request.getPowsMap(),
+                            request.getRid(),
+                            request.getSignature(),
+                            request.getSigningMode(),
+                            request.getMacsMap(),
+                            request.getSince()
+                    ),
+                    (ServerCallStreamObserver<AuditChunk>) responseObserver
             );
-            responseObserver.onCompleted();
+
+        } catch (ServerStatusRuntimeException e) {
+            responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException(e.getTrailers()));
+        }
+    }
+
+    @Override
+    public void checkAccountWriteBack(CheckAccountWriteBackRequest request, StreamObserver<CheckAccountWriteBackResponse> responseObserver) {
+        try {
+
+            reply(serverBackend.checkAccountWriteBack(
+                    request.getClientKey(),
+                    request.getCheckKey(),
+                    request.getNonce(),
+                    request.getTimestamp(),
+                    request.getPendingTransactionsList(),
+                    request.getBalance(),
+                    request.getWid(),
+                    request.getPairSign(),
+                    request.getSignature(),
+                    request.getSigningMode(),
+                    request.getMacsMap()
+            ), responseObserver);
 
         } catch (ServerStatusRuntimeException e) {
             responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException(e.getTrailers()));
@@ -156,16 +196,39 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
 
     @Override
     public void auditWriteBack(AuditWriteBackRequest request, StreamObserver<AuditWriteBackResponse> responseObserver) {
+        try {
+
+            reply(serverBackend.auditWriteBack(
+                    request.getClientKey(),
+                    request.getAuditKey(),
+                    request.getNonce(),
+                    request.getTimestamp(),
+                    request.getTransactionsList(),
+                    request.getSignature(),
+                    request.getSigningMode(),
+                    request.getMacsMap(),
+                    request.getSince(),
+                    request.getHistoryWid(),
+                    request.getHistorySignature()
+            ), responseObserver);
+
+        } catch (ServerStatusRuntimeException e) {
+            responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException(e.getTrailers()));
+        }
+    }
+
+    @Override
+    public void pow(ProofOfWorkRequest request, StreamObserver<ProofOfWorkResponse> responseObserver) {
         try {
 
             responseObserver.onNext(
-                    serverBackend.auditWriteBack(
-                            request.getClientKey(),
-                            request.getAuditKey(),
+                    serverBackend.generateProofOfWork(
+                            request.getPublicKey(),
                             request.getNonce(),
                             request.getTimestamp(),
-                            request.getTransactionsList(),
-                            request.getSignature()
+                            request.getSignature(),
+                            request.getSigningMode(),
+                            request.getMacsMap()
                     )
             );
             responseObserver.onCompleted();
@@ -176,15 +239,17 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
     }
 
     @Override
-    public void pow(ProofOfWorkRequest request, StreamObserver<ProofOfWorkResponse> responseObserver) {
+    public void getRid(RidRequest request, StreamObserver<RidResponse> responseObserver) {
         try {
 
             responseObserver.onNext(
-                    serverBackend.generateProofOfWork(
+                    serverBackend.getRid(
                             request.getPublicKey(),
                             request.getNonce(),
                             request.getTimestamp(),
-                            request.getSignature()
+                            request.getSignature(),
+                            request.getSigningMode(),
+                            request.getMacsMap()
                     )
             );
             responseObserver.onCompleted();
@@ -195,15 +260,17 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
     }
 
     @Override
-    public void getRid(RidRequest request, StreamObserver<RidResponse> responseObserver) {
+    public void openSession(OpenSessionRequest request, StreamObserver<OpenSessionResponse> responseObserver) {
         try {
 
             responseObserver.onNext(
-                    serverBackend.getRid(
+                    serverBackend.openSession(
                             request.getPublicKey(),
+                            request.getEphemeralKey(),
                             request.getNonce(),
                             request.getTimestamp(),
-                            request.getSignature()
+                            request.getSignature(),
+                            request.getSigningMode()
                     )
             );
             responseObserver.onCompleted();
@@ -212,4 +279,57 @@ public class ServerServiceImpl extends ServerServiceGrpc.ServerServiceImplBase {
             responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException(e.getTrailers()));
         }
     }
-}
\ No newline at end of file
+
+    // aux
+
+    /**
+     * Sends the responses only as fast as the client takes them: the next one is built when the call is ready for it,
+     * so a slow client doesn't leave a whole history queued in the server's memory.
+     */
+    private <R> void stream(Iterator<R> responses, ServerCallStreamObserver<R> responseObserver) {
+        AtomicBoolean done = new AtomicBoolean();
+
+        responseObserver.setOnCancelHandler(() -> done.set(true));
+        responseObserver.setOnReadyHandler(() -> {
+            try {
+                while (responseObserver.isReady() && !done.get()) {
+                    if (responses.hasNext()) {
+                        responseObserver.onNext(responses.next());
+                    } else {
+                        done.set(true);
+                        responseObserver.onCompleted();
+                    }
+                }
+            } catch (RuntimeException e) {
+                // building a chunk failed, the call ends with the error instead of hanging
+                if (!done.getAndSet(true))
+                    responseObserver.onError(toStatusException(e));
+            }
+        });
+    }
+
+    /**
+     * Answers once the operation completes, without holding the handler thread while ADEB runs.
+     */
+    private <R> void reply(CompletableFuture<R> response, StreamObserver<R> responseObserver) {
+        response.whenComplete((res, throwable) -> {
+            if (throwable == null) {
+                responseObserver.onNext(res);
+                responseObserver.onCompleted();
+                return;
+            }
+
+            Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+
+            responseObserver.onError(toStatusException(cause));
+        });
+    }
+
+    private static StatusRuntimeException toStatusException(Throwable cause) {
+        if (cause instanceof ServerStatusRuntimeException) {
+            ServerStatusRuntimeException e = (ServerStatusRuntimeException) cause;
+            return INTERNAL.withDescription(e.getMessage()).asRuntimeException(e.getTrailers());
+        }
+        return UNKNOWN.withCause(cause).asRuntimeException();
+    }
+}
@@ -0,0 +1,39 @@
+package pt.tecnico.bank.server.domain;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One lock per account.
+ * Operations that touch more than one account take the locks in a fixed order (by encoded key),
+ * so two transfers between the same pair of accounts in opposite directions cannot deadlock.
+ */
+public class AccountLockManager {
+
+    private final ConcurrentHashMap<PublicKey, ReentrantLock> locks = new ConcurrentHashMap<>();
+
+    public void lock(PublicKey... keys) {
+        for (PublicKey key : order(keys))
+            getLock(key).lock();
+    }
+
+    public void unlock(PublicKey... keys) {
+        PublicKey[] ordered = order(keys);
+
+        for (int i = ordered.length - 1; i >= 0; i--)
+            getLock(ordered[i]).unlock();
+    }
+
+    private ReentrantLock getLock(PublicKey key) {
+        return locks.computeIfAbsent(key, k -> new ReentrantLock());
+    }
+
+    private PublicKey[] order(PublicKey... keys) {
+        return Arrays.stream(keys)
+                .distinct()
+                .sorted((k1, k2) -> Arrays.compare(k1.getEncoded(), k2.getEncoded()))
+                .toArray(PublicKey[]::new);
+    }
+}
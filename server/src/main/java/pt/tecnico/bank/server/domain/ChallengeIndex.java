@@ -0,0 +1,61 @@
+package pt.tecnico.bank.server.domain;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+public class ChallengeIndex implements Serializable {
+
+    private static final long serialVersionUID = 6472019038576341125L;
+
+    // a proof of work is accepted for 10 minutes after its challenge was issued
+    private static final long VALIDITY_SECONDS = 60 * 10;
+    // oldest challenges are dropped past this, so a client asking for challenges in a loop can't slow its own audits
+    private static final int MAX_CHALLENGES = 64;
+
+    /**
+     * Challenges as sent to the client (the server's signature over the random challenge), oldest first.
+     * Checking a proof of work is then a SHA-256 per live challenge, with no signing.
+     */
+    private final Deque<IssuedChallenge> challenges = new ArrayDeque<>();
+
+    public synchronized void add(byte[] hash, long timestamp) {
+        prune(timestamp);
+
+        if (challenges.size() == MAX_CHALLENGES)
+            challenges.pollFirst();
+
+        challenges.addLast(new IssuedChallenge(hash, timestamp));
+    }
+
+    /**
+     * @return the hashes of the challenges that have not expired, newest first.
+     */
+    public synchronized List<byte[]> getLive(long now) {
+        prune(now);
+
+        List<byte[]> live = new ArrayList<>(challenges.size());
+        challenges.descendingIterator().forEachRemaining(challenge -> live.add(challenge.hash));
+        return live;
+    }
+
+    private void prune(long now) {
+        while (!challenges.isEmpty() && now - challenges.peekFirst().timestamp >= VALIDITY_SECONDS)
+            challenges.pollFirst();
+    }
+
+    private static class IssuedChallenge implements Serializable {
+
+        private static final long serialVersionUID = -2318850460192275634L;
+
+        private final byte[] hash;
+        private final long timestamp;
+
+        private IssuedChallenge(byte[] hash, long timestamp) {
+            this.hash = hash;
+            this.timestamp = timestamp;
+        }
+    }
+}
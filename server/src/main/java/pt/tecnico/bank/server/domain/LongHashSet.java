@@ -0,0 +1,88 @@
+package pt.tecnico.bank.server.domain;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Open-addressing set of primitive longs (linear probing), so nonce checks neither box nor allocate entries.
+ * 0 is used to mark empty slots and is tracked on the side.
+ */
+class LongHashSet {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] keys;
+    private int mask;
+    private int size;
+    private boolean containsZero;
+
+    LongHashSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    LongHashSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize * 2 - 1, 1)) << 1;     // load factor <= 0.5
+        this.keys = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @return true if the key was not in the set.
+     */
+    boolean add(long key) {
+        if (key == 0) {
+            if (containsZero)
+                return false;
+            containsZero = true;
+            size++;
+            return true;
+        }
+
+        int index = index(key);
+        while (keys[index] != 0) {
+            if (keys[index] == key)
+                return false;
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        size++;
+
+        if (size * 2 > keys.length)
+            grow();
+
+        return true;
+    }
+
+    void forEach(LongConsumer action) {
+        if (containsZero)
+            action.accept(0);
+
+        for (long key : keys)
+            if (key != 0)
+                action.accept(key);
+    }
+
+    // aux
+
+    private int index(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;     // spread the bits, nonces may be chosen by the client
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+
+        keys = new long[oldKeys.length * 2];
+        mask = keys.length - 1;
+
+        for (long key : oldKeys) {
+            if (key == 0)
+                continue;
+
+            int index = index(key);
+            while (keys[index] != 0)
+                index = (index + 1) & mask;
+            keys[index] = key;
+        }
+    }
+}
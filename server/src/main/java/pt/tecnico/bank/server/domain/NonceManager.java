@@ -1,102 +1,78 @@
 package pt.tecnico.bank.server.domain;
 
 import java.io.Serializable;
-import java.util.*;
 
 public class NonceManager implements Serializable {
 
+    private static final long serialVersionUID = -4196276957935596939L;
+
     /**
-     * Contains all the nonces that were used inside the validity window sorted by timestamp.
+     * Ring of buckets, one per timestamp second, covering [now - validityWindow, now + validityWindow].
+     * Two seconds inside that range never share a slot, so a slot holding any other second is expired
+     * and is reset as a whole. Nonces are not persisted, like before.
      */
-    static final List<NonceEntry> nonces = Collections.synchronizedList(new ArrayList<>());
-
-    private volatile long lastCleaned = 0;
+    private transient Bucket[] buckets;
 
     // we'll default to a 10-minute validity window, otherwise the amount of memory used on nonces can get quite large.
     private long validityWindowSeconds = 60 * 10;
 
     public boolean validateNonce(long nonce, long timestamp)  {
-        if (System.currentTimeMillis() / 1000 - timestamp > getValidityWindowSeconds())
-            return false;
-
-        NonceEntry entry = new NonceEntry(timestamp, nonce);
+        return validateNonce(nonce, timestamp, System.currentTimeMillis() / 1000);
+    }
 
-        if (nonces.contains(entry))
+    synchronized boolean validateNonce(long nonce, long timestamp, long now) {
+        if (Math.abs(now - timestamp) > getValidityWindowSeconds())
             return false;
 
-        nonces.add(entry);
-        cleanupNonces();
-
-        return true;
-    }
-
-    private void cleanupNonces() {
-        long now = System.currentTimeMillis() / 1000;
-
-        if (now - lastCleaned > 1) {    // One second is small enough that cleaning up does not become too expensive.
-            Iterator<NonceEntry> iterator = nonces.iterator();
-            while (iterator.hasNext()) {
-                NonceEntry nextNonce = iterator.next();
-                long difference = now - nextNonce.timestamp;
-                if (difference > getValidityWindowSeconds()) {
-                    iterator.remove();
-                } else {
-                    break; // we can break because the list is sorted by timestamp
-                }
-            }
-            // keep track of last cleanup
-            lastCleaned = now;
-        }
+        return getBucket(timestamp).nonces.add(nonce);
     }
 
     public long getValidityWindowSeconds() {
         return validityWindowSeconds;
     }
 
-    public void setValidityWindowSeconds(long validityWindowSeconds) {
+    public synchronized void setValidityWindowSeconds(long validityWindowSeconds) {
         this.validityWindowSeconds = validityWindowSeconds;
+        this.buckets = null;
     }
 
-    public String getNonces() {
+    public synchronized String getNonces() {
         StringBuilder builder = new StringBuilder();
-        for (NonceEntry ne : nonces) {
-            builder.append("(").append(ne.nonce).append(", ").append(ne.timestamp).append(")");
-        }
+
+        if (buckets != null)
+            for (Bucket bucket : buckets)
+                if (bucket != null)
+                    bucket.nonces.forEach(nonce ->
+                            builder.append("(").append(nonce).append(", ").append(bucket.second).append(")"));
+
         return builder.toString();
     }
 
-    /**
-     * Representation of a nonce -> (rand, timestamp)
-     */
-    static class NonceEntry implements Serializable{
+    private Bucket getBucket(long second) {
+        if (buckets == null)
+            buckets = new Bucket[(int) (2 * validityWindowSeconds + 1)];
 
-        private final long timestamp;
-        private final long nonce;
+        int index = (int) Math.floorMod(second, (long) buckets.length);
+        Bucket bucket = buckets[index];
 
-        public NonceEntry(long timestamp, long nonce) {
-            this.timestamp = timestamp;
-            this.nonce = nonce;
+        if (bucket == null || bucket.second != second) {
+            bucket = new Bucket(second);    // whatever was here is outside the validity window
+            buckets[index] = bucket;
         }
 
-        public long getTimestamp() {
-            return timestamp;
-        }
+        return bucket;
+    }
 
-        public long getNonce() {
-            return nonce;
-        }
+    /**
+     * Nonces seen with a given timestamp second.
+     */
+    private static class Bucket {
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            NonceEntry that = (NonceEntry) o;
-            return timestamp == that.timestamp && Objects.equals(nonce, that.nonce);
-        }
+        private final long second;
+        private final LongHashSet nonces = new LongHashSet();
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(timestamp, nonce);
+        private Bucket(long second) {
+            this.second = second;
         }
     }
-}
\ No newline at end of file
+}
@@ -3,21 +3,31 @@ package pt.tecnico.bank.server.domain;
 import com.google.protobuf.ByteString;
 import io.grpc.Status;
 import pt.tecnico.bank.crypto.Crypto;
+import pt.tecnico.bank.crypto.SignaturePayload;
+import pt.tecnico.bank.crypto.SigningMode;
+import pt.tecnico.bank.server.domain.adeb.AdebBatcher;
+import pt.tecnico.bank.server.domain.adeb.AdebFrontend;
 import pt.tecnico.bank.server.domain.adeb.AdebInstance;
+import pt.tecnico.bank.server.domain.adeb.AdebKey;
 import pt.tecnico.bank.server.domain.adeb.AdebManager;
 import pt.tecnico.bank.server.domain.adeb.MyAdebProof;
 import pt.tecnico.bank.server.domain.exceptions.ErrorMessage;
 import pt.tecnico.bank.server.domain.exceptions.ServerStatusRuntimeException;
+import pt.tecnico.bank.server.grpc.Adeb.AdebSessionResponse;
 import pt.tecnico.bank.server.grpc.Adeb.EchoRequest;
 import pt.tecnico.bank.server.grpc.Adeb.ReadyRequest;
 import pt.tecnico.bank.server.grpc.Server.*;
 
 import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
 import java.security.PublicKey;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static pt.tecnico.bank.server.domain.exceptions.ErrorMessage.*;
 
@@ -27,6 +37,16 @@ import static pt.tecnico.bank.server.domain.exceptions.ErrorMessage.*;
  */
 public class ServerBackend implements Serializable {
 
+    private static final int DEFAULT_ADEB_MAX_BATCH_SIZE = 64;
+    private static final long DEFAULT_ADEB_MAX_DELAY_MILLIS = 1;
+    private static final int DEFAULT_ADEB_MAX_IN_FLIGHT = 256;
+    private static final long DEFAULT_ADEB_TIMEOUT_MILLIS = 10000;    // the clients' deadline
+    private static final int DEFAULT_ADEB_MAX_INSTANCES = 10000;
+    private static final long DEFAULT_ADEB_INSTANCE_TTL_MILLIS = 30000;
+    private static final long DEFAULT_ADEB_DELIVERED_GRACE_MILLIS = 2000;
+    private static final long DEFAULT_SESSION_TTL_SECONDS = 60 * 60;
+    private static final int DEFAULT_AUDIT_CHUNK_SIZE = 256;
+
     private final ConcurrentHashMap<PublicKey, User> users;
     private final StateManager stateManager;
     private final Crypto crypto;
@@ -34,8 +54,17 @@ public class ServerBackend implements Serializable {
     private final int nByzantineServers;
 
     private final NonceManager nonceManager = new NonceManager();
+    private final AccountLockManager accountLocks = new AccountLockManager();
+    private final SessionManager sessionManager = new SessionManager(Long.getLong("session.ttlSeconds", DEFAULT_SESSION_TTL_SECONDS));
+    private final SessionManager replicaSessionManager = new SessionManager(Long.getLong("session.ttlSeconds", DEFAULT_SESSION_TTL_SECONDS));
 
+    private final AdebFrontend adebFrontend;
     private final AdebManager adebManager;
+    private final ExecutorService adebExecutor = Executors.newCachedThreadPool();
+    private final AdebBatcher echoBatcher;
+    private final AdebBatcher readyBatcher;
+    private final long adebTimeoutMillis = Long.getLong("adeb.timeoutMillis", DEFAULT_ADEB_TIMEOUT_MILLIS);
+    private final int auditChunkSize = Integer.getInteger("audit.chunkSize", DEFAULT_AUDIT_CHUNK_SIZE);
 
 
     public ServerBackend(String sName, int nByzantineServers) {
@@ -44,17 +73,32 @@ public class ServerBackend implements Serializable {
         this.stateManager = new StateManager(sName);
 
         this.crypto = new Crypto(sName, sName, false);
-        this.users = stateManager.loadState();
+        this.users = stateManager.loadState(this::upgradeUser);
+
+        this.adebFrontend = new AdebFrontend(sName, nByzantineServers, this.crypto);
+        this.adebManager = new AdebManager(nByzantineServers,
+                Integer.getInteger("adeb.maxInFlight", DEFAULT_ADEB_MAX_IN_FLIGHT),
+                Integer.getInteger("adeb.maxInstances", DEFAULT_ADEB_MAX_INSTANCES),
+                Long.getLong("adeb.instanceTtlMillis", DEFAULT_ADEB_INSTANCE_TTL_MILLIS),
+                Long.getLong("adeb.deliveredGraceMillis", DEFAULT_ADEB_DELIVERED_GRACE_MILLIS));
 
-        this.adebManager = new AdebManager(nByzantineServers);
+        int adebMaxBatchSize = Integer.getInteger("adeb.maxBatchSize", DEFAULT_ADEB_MAX_BATCH_SIZE);
+        long adebMaxDelayMillis = Long.getLong("adeb.maxDelayMillis", DEFAULT_ADEB_MAX_DELAY_MILLIS);
+        this.echoBatcher = new AdebBatcher(sName + "-adeb-echo", adebMaxBatchSize, adebMaxDelayMillis, this::broadcastEchos);
+        this.readyBatcher = new AdebBatcher(sName + "-adeb-ready", adebMaxBatchSize, adebMaxDelayMillis, this::broadcastReadys);
 
         initServerKeys();
+
+        this.adebFrontend.warmUp();
     }
 
-    public synchronized OpenAccountResponse openAccount(
-            String username, int initWid, int initBalance, ByteString pairSignature, ByteString pubKey, ByteString signature
+    public OpenAccountResponse openAccount(
+            String username, int initWid, int initBalance, ByteString pairSignature, ByteString pubKey, ByteString signature,
+            int signingMode
     ) {
 
+        SigningMode mode = getSigningMode(signingMode, 0);
+
         PublicKey key = crypto.bytesToKey(pubKey);
 
         if (users.containsKey(key))
@@ -65,29 +109,37 @@ public class ServerBackend implements Serializable {
         if (!crypto.validateMessage(key, initWid + String.valueOf(initBalance), pairSig))
             throwError(INVALID_SIGNATURE, 0);
 
-        String message = username + initWid + initBalance + Arrays.toString(pairSig) + key.toString();
+        SignaturePayload message = crypto.payload(mode).add(username).add(initWid).add(initBalance).add(pairSig).add(key);
 
         byte[] sig = crypto.byteStringToByteArray(signature);
 
         if (!crypto.validateMessage(key, message, sig))
             throwError(INVALID_SIGNATURE, 0);
 
-        User newUser = new User(key, username, initWid, initBalance, pairSig);
-        users.put(key, newUser);
+        accountLocks.lock(key);
+        try {
+            if (users.containsKey(key))
+                throwError(ACCOUNT_ALREADY_EXISTS, 0);
 
-        stateManager.saveState(users);
+            stateManager.commit(users, new StateRecord.OpenAccount(new User(key, username, initWid, initBalance, pairSig)));
+        } finally {
+            accountLocks.unlock(key);
+        }
 
         return OpenAccountResponse.newBuilder()
                 .setUsername(username)
                 .setPublicKey(ByteString.copyFrom(key.getEncoded()))
-                .setSignature(ByteString.copyFrom(crypto.encrypt(this.sName, username + key)))
+                .setSignature(ByteString.copyFrom(crypto.encrypt(this.sName, crypto.payload(mode).add(username).add(key))))
                 .build();
     }
 
-    public SendAmountResponse sendAmount(
-            Transaction transaction, long nonce, long timestamp, int balance, ByteString pairSignature, ByteString signature
+    public CompletableFuture<SendAmountResponse> sendAmount(
+            Transaction transaction, long nonce, long timestamp, int balance, ByteString pairSignature, ByteString signature,
+            int signingMode, Map<String, SessionMac> macs, ByteString historySignature
     ) {
 
+        SigningMode mode = getSigningMode(signingMode, nonce + 1);
+
         PublicKey senderKey = crypto.bytesToKey(transaction.getSenderKey());
         PublicKey receiverKey = crypto.bytesToKey(transaction.getReceiverKey());
 
@@ -108,79 +160,73 @@ public class ServerBackend implements Serializable {
 
         validateTransaction(transaction, nonce);
 
-        String m = transaction.toString() + nonce + timestamp + wid + balance + Arrays.toString(pairSig);
+        SignaturePayload m = crypto.payload(mode).add(transaction).add(nonce).add(timestamp).add(wid).add(balance).add(pairSig);
 
-        byte[] sig = crypto.byteStringToByteArray(signature);
-
-        if (!crypto.validateMessage(senderKey, m, sig))
-            throwError(INVALID_SIGNATURE, nonce + 1);
+        SessionManager.Session session = authenticate(senderKey, m, signature, macs, nonce);
 
         // ------------------------ ADEB ------------------------
 
-        List<AdebProof> adebProofs = runAdeb(sig);
+        CompletableFuture<List<AdebProof>> adeb = runAdeb(crypto.digest(m), nonce);
 
         // ------------------------------------------------------
 
+        return adeb.thenApply(adebProofs -> {
+            accountLocks.lock(senderKey, receiverKey);
+            try {
+                User sourceUser = users.get(senderKey);
 
-        User sourceUser = users.get(senderKey);
+                if (!validateUserNonce(sourceUser, nonce, timestamp))
+                    throwError(INVALID_NONCE, nonce + 1);
 
-        if (!validateUserNonce(sourceUser, nonce, timestamp))
-            throwError(INVALID_NONCE, nonce + 1);
-
-        if (sourceUser.getBalance() < transaction.getAmount())
-            throwError(NOT_ENOUGH_BALANCE, nonce + 1);
+                if (sourceUser.getBalance() < transaction.getAmount())
+                    throwError(NOT_ENOUGH_BALANCE, nonce + 1);
 
-        if (!(wid == sourceUser.getWid() + 1 && balance == sourceUser.getBalance() - transaction.getAmount()))
-            throwError(BYZANTINE_CLIENT, nonce + 1);
+                if (!(wid == sourceUser.getWid() + 1 && balance == sourceUser.getBalance() - transaction.getAmount()))
+                    throwError(BYZANTINE_CLIENT, nonce + 1);
 
-        addPendingTransaction(
-                transaction.getAmount(),
-                transaction.getSenderUsername(),
-                transaction.getReceiverUsername(),
-                senderKey,
-                receiverKey,
-                wid,
-                transaction.getSent(),
-                crypto.byteStringToByteArray(transaction.getSignature())
-        );  // add to dest pending list
-
-        List<MyTransaction> totalTransactions = sourceUser.getTotalTransactions();
-        totalTransactions.add(new MyTransaction(
+                MyTransaction myTransaction = new MyTransaction(
                         transaction.getAmount(),
                         transaction.getSenderUsername(),
                         transaction.getReceiverUsername(),
-                        crypto.bytesToKey(transaction.getSenderKey()),
-                        crypto.bytesToKey(transaction.getReceiverKey()),
-                        transaction.getWid(),
+                        senderKey,
+                        receiverKey,
+                        wid,
                         transaction.getSent(),
                         crypto.byteStringToByteArray(transaction.getSignature())
-                )
-        );
+                );
 
-        List<MyAdebProof> myAdebProofs = convertToMyAdebProofs(adebProofs, wid);
-        sourceUser.setAdebProofs(myAdebProofs);
+                byte[] historyRoot = crypto.chain(sourceUser.getHistoryRoot(), buildTransaction(myTransaction));
+                byte[] historySig = crypto.byteStringToByteArray(historySignature);
 
-        sourceUser.setTotalTransactions(totalTransactions);
-        sourceUser.setBalance(balance);
-        sourceUser.setWid(wid);
-        sourceUser.setPairSignature(pairSig);
-        users.put(senderKey, sourceUser);
+                if (historySig.length > 0 && !validateHistorySignature(senderKey, wid, historyRoot, historySig))
+                    throwError(INVALID_SIGNATURE, nonce + 1);
 
-        stateManager.saveState(users);
+                List<MyAdebProof> myAdebProofs = convertToMyAdebProofs(adebProofs, wid);
 
-        String messageToSign = senderKey.toString() + (nonce + 1) + wid;
+                // added to the sender's transactions and to the receiver's pending list
+                stateManager.commit(users, new StateRecord.SendAmount(
+                        senderKey, receiverKey, myTransaction, balance, wid, pairSig, myAdebProofs, historyRoot, historySig));
+            } finally {
+                accountLocks.unlock(senderKey, receiverKey);
+            }
 
-        return SendAmountResponse.newBuilder()
-                .setPublicKey(ByteString.copyFrom(senderKey.getEncoded()))
-                .setNonce(nonce + 1)
-                .setWid(wid)
-                .setSignature(ByteString.copyFrom(crypto.encrypt(this.sName, messageToSign)))
-                .build();
+            SignaturePayload messageToSign = crypto.payload(mode).add(senderKey).add(nonce + 1).add(wid);
 
+            return SendAmountResponse.newBuilder()
+                    .setPublicKey(ByteString.copyFrom(senderKey.getEncoded()))
+                    .setNonce(nonce + 1)
+                    .setWid(wid)
+                    .setSignature(sign(session, messageToSign))
+                    .build();
+        });
     }
 
     public CheckAccountResponse checkAccount(
-            ByteString clientKey, ByteString checkKey, long nonce, long timestamp, int rid, ByteString signature) {
+            ByteString clientKey, ByteString checkKey, long nonce, long timestamp, int rid, ByteString signature, int signingMode,
+            Map<String, SessionMac> macs, int limit, int cursor
+    ) {
+
+        SigningMode mode = getSigningMode(signingMode, nonce + 1);
 
         PublicKey cliKey = crypto.bytesToKey(clientKey);
         PublicKey chKey = crypto.bytesToKey(checkKey);
@@ -191,31 +237,63 @@ public class ServerBackend implements Serializable {
         if (!validateUserNonce(users.get(cliKey), nonce, timestamp))
             throwError(INVALID_NONCE, nonce + 1);
 
-        byte[] sig = crypto.byteStringToByteArray(signature);
-        String m = cliKey.toString() + chKey + nonce + timestamp + rid;
+        SignaturePayload m = crypto.payload(mode).add(cliKey).add(chKey).add(nonce).add(timestamp).add(rid);
 
-        if (!crypto.validateMessage(cliKey, m, sig))
-            throwError(INVALID_SIGNATURE, nonce + 1);
+        boolean paged = limit != 0 || cursor != 0;
 
-        User user = users.get(cliKey);
+        if (paged)
+            m.add(limit).add(cursor);
 
-        if (rid != user.getRid() + 1)
-            throwError(BYZANTINE_CLIENT, nonce + 1);
+        SessionManager.Session session = authenticate(cliKey, m, signature, macs, nonce);
+
+        accountLocks.lock(cliKey);
+        try {
+            User user = users.get(cliKey);
 
-        user.setRid(rid);
-        users.put(cliKey, user);
-        stateManager.saveState(users);
+            if (rid != user.getRid() + 1)
+                throwError(BYZANTINE_CLIENT, nonce + 1);
 
-        List<Transaction> pendingTransactions = getPendingTransactions(chKey);
+            stateManager.commit(users, new StateRecord.Rid(cliKey, rid));
+        } finally {
+            accountLocks.unlock(cliKey);
+        }
 
-        int wid = users.get(chKey).getWid();
-        int currBalance = users.get(chKey).getBalance();
-        byte[] pairSig = users.get(chKey).getPairSignature();
-        List<MyAdebProof> myAdebProofs = users.get(chKey).getAdebProofs();
+        List<MyTransaction> pendingPage;
+        int pendingCount;
+        int wid;
+        int currBalance;
+        byte[] pairSig;
+        List<MyAdebProof> myAdebProofs;
+        byte[] historyRoot;
+        int historyWid;
+        byte[] historySig;
+
+        accountLocks.lock(chKey);
+        try {
+            pendingPage = users.get(chKey).getPendingPage(cursor, limit);
+            pendingCount = users.get(chKey).getPendingTransactions().size();
+
+            wid = users.get(chKey).getWid();
+            currBalance = users.get(chKey).getBalance();
+            pairSig = users.get(chKey).getPairSignature();
+            myAdebProofs = users.get(chKey).getAdebProofs();
+            historyRoot = users.get(chKey).getHistoryRoot();
+            historyWid = users.get(chKey).getHistoryWid();
+            historySig = users.get(chKey).getHistorySignature();
+        } finally {
+            accountLocks.unlock(chKey);
+        }
+
+        List<Transaction> pendingTransactions = new ArrayList<>(pendingPage.size());
+        pendingPage.forEach(transaction -> pendingTransactions.add(buildTransaction(transaction)));
 
         List<AdebProof> adebProofs = convertToAdebProofs(myAdebProofs);
 
-        String messageToSign = pendingTransactions.toString() + (nonce + 1) + adebProofs + rid + currBalance + wid + Arrays.toString(pairSig);
+        SignaturePayload messageToSign = crypto.payload(mode).add(pendingTransactions).add(nonce + 1).add(adebProofs)
+                .add(rid).add(currBalance).add(wid).add(pairSig);
+
+        if (paged)
+            messageToSign.add(limit).add(cursor).add(pendingCount);
 
         return CheckAccountResponse.newBuilder()
                 .addAllPendingTransactions(pendingTransactions)
@@ -225,14 +303,26 @@ public class ServerBackend implements Serializable {
                 .setBalance(currBalance)
                 .setWid(wid)
                 .setPairSignature(ByteString.copyFrom(pairSig))
-                .setSignature(ByteString.copyFrom(crypto.encrypt(this.sName, messageToSign)))
+                .setSignature(sign(session, messageToSign))
+                .setHistoryRoot(ByteString.copyFrom(historyRoot))
+                .setHistoryWid(historyWid)
+                .setHistorySignature(ByteString.copyFrom(historySig))
+                .setPendingCount(pendingCount)
                 .build();
     }
 
-    public ReceiveAmountResponse receiveAmount(
-            List<Transaction> transactions, ByteString publicKey, long nonce, long timestamp, int wid, int balance, ByteString pairSignature, ByteString signature
+    /**
+     * Receives the pending transactions, or with a limit or cursor only the page of them checkAccount returns for the
+     * same ones, so that a receiver with many incoming transfers can settle them in batches.
+     */
+    public CompletableFuture<ReceiveAmountResponse> receiveAmount(
+            List<Transaction> transactions, ByteString publicKey, long nonce, long timestamp, int wid, int balance, ByteString pairSignature, ByteString signature,
+            int signingMode, Map<String, SessionMac> macs, ByteString historySignature, int limit, int cursor,
+            List<Integer> senderWids
     ) {
 
+        SigningMode mode = getSigningMode(signingMode, nonce + 1);
+
         PublicKey pubKey = crypto.bytesToKey(publicKey);
 
         if (!users.containsKey(pubKey))
@@ -245,123 +335,200 @@ public class ServerBackend implements Serializable {
 
         transactions.forEach(transaction -> validateTransaction(transaction, nonce));
 
-        String message = transactions + pubKey.toString() + nonce + timestamp + wid + balance + Arrays.toString(pairSig);
+        SignaturePayload message = crypto.payload(mode).add(transactions).add(pubKey).add(nonce).add(timestamp).add(wid)
+                .add(balance).add(pairSig);
 
-        byte[] sig = crypto.byteStringToByteArray(signature);
+        boolean paged = limit != 0 || cursor != 0;
 
-        if (!crypto.validateMessage(pubKey, message, sig))
-            throwError(INVALID_SIGNATURE, nonce + 1);
+        if (paged) {
+            message.add(limit).add(cursor);
+            senderWids.forEach(message::add);
+        }
+
+        SessionManager.Session session = authenticate(pubKey, message, signature, macs, nonce);
 
 
         // ------------------------ ADEB ------------------------
 
-        List<AdebProof> adebProofs = runAdeb(sig);
+        CompletableFuture<List<AdebProof>> adeb = runAdeb(crypto.digest(message), nonce);
 
         // ------------------------------------------------------
 
+        return adeb.thenApply(adebProofs -> {
+            accountLocks.lock(pubKey);
+            try {
+                User user = users.get(pubKey);
 
-        User user = users.get(pubKey);
+                if (!validateUserNonce(user, nonce, timestamp))
+                    throwError(INVALID_NONCE, nonce + 1);
 
-        if (!validateUserNonce(user, nonce, timestamp))
-            throwError(INVALID_NONCE, nonce + 1);
+                List<MyTransaction> pendingTransactions = user.getPendingPage(cursor, limit);
+                int amountToReceive = 0;
 
-        List<MyTransaction> pendingTransactions = user.getPendingTransactions();
-        int amountToReceive = 0;
+                for (MyTransaction pendingTransaction : pendingTransactions)
+                    amountToReceive += pendingTransaction.getAmount();
 
-        for (MyTransaction pendingTransaction : pendingTransactions)
-            amountToReceive += pendingTransaction.getAmount();
+                // the receiver's copies take the wids after its own, one each; their signatures were checked already
+                if (!(!transactions.isEmpty() && wid == user.getWid() + transactions.size()
+                        && validateTransactions(transactions, user.getWid() + 1, wid, nonce)
+                        && balance == user.getBalance() + amountToReceive))
+                    throwError(BYZANTINE_CLIENT, nonce + 1);
 
-        if (!(wid == user.getWid() + 1 && balance == user.getBalance() + amountToReceive))
-            throwError(BYZANTINE_CLIENT, nonce + 1);
+                if (paged && !isPendingPage(transactions, senderWids, pendingTransactions))
+                    throwError(BYZANTINE_CLIENT, nonce + 1);
 
 
-        transactions.forEach(transaction -> transactionAmount(
-                transaction.getAmount(),
-                transaction.getSenderUsername(),
-                transaction.getReceiverUsername(),
-                crypto.bytesToKey(transaction.getSenderKey()),
-                crypto.bytesToKey(transaction.getReceiverKey()),
-                transaction.getWid(),
-                transaction.getSent(),
-                crypto.byteStringToByteArray(transaction.getSignature())
-        ));
+                List<MyTransaction> myTransactions = transactionsToTransactions(transactions);
+                List<byte[]> historyRoots = chainTransactions(user.getHistoryRoot(), myTransactions);
+                byte[] historyRoot = historyRoots.isEmpty() ? user.getHistoryRoot() : historyRoots.get(historyRoots.size() - 1);
+                byte[] historySig = crypto.byteStringToByteArray(historySignature);
 
-        pendingTransactions.clear();
-        user.setPendingTransactions(pendingTransactions); // clear the list
+                if (historySig.length > 0 && !validateHistorySignature(pubKey, wid, historyRoot, historySig))
+                    throwError(INVALID_SIGNATURE, nonce + 1);
 
-        user.setWid(wid);
-        user.setPairSignature(pairSig);
+                List<MyAdebProof> myAdebProofs = convertToMyAdebProofs(adebProofs, wid);
 
-        List<MyAdebProof> myAdebProofs = convertToMyAdebProofs(adebProofs, wid);
-        user.setAdebProofs(myAdebProofs);
+                // received transactions are added to the total and leave the pending list
+                stateManager.commit(users, new StateRecord.ReceiveAmount(
+                        pubKey, myTransactions, wid, pairSig, myAdebProofs, historyRoots, historySig, pendingTransactions));
+            } finally {
+                accountLocks.unlock(pubKey);
+            }
 
-        users.put(pubKey, user); // update user
+            SignaturePayload newMessage = crypto.payload(mode).add(pubKey).add(nonce + 1).add(wid);
 
-        stateManager.saveState(users);
-
-        String newMessage = String.valueOf(pubKey) + (nonce + 1) + wid;
-
-        return ReceiveAmountResponse.newBuilder()
-                .setPublicKey(ByteString.copyFrom(pubKey.getEncoded()))
-                .setNonce(nonce + 1)
-                .setWid(wid)
-                .setSignature(ByteString.copyFrom(crypto.encrypt(this.sName, newMessage)))
-                .build();
+            return ReceiveAmountResponse.newBuilder()
+                    .setPublicKey(ByteString.copyFrom(pubKey.getEncoded()))
+                    .setNonce(nonce + 1)
+                    .setWid(wid)
+                    .setSignature(sign(session, newMessage))
+                    .build();
+        });
     }
 
+    /**
+     * Returns the audited account's transactions after wid since, with the one at since as an anchor the client checks
+     * against its copy. An account's history holds its transactions in wid order from 1, so wid and position match.
+     * The cursor fields are only signed for incremental audits (since > 0), so full audits are signed the same as before.
+     */
     public AuditResponse audit(
-            ByteString clientKey, ByteString auditKey, long nonce, long timestamp, Map<String, Long> pows, int rid, ByteString signature
+            ByteString clientKey, ByteString auditKey, long nonce, long timestamp, Map<String, Long> pows, int rid, ByteString signature,
+            int signingMode, Map<String, SessionMac> macs, int since
     ) {
 
-        PublicKey cliKey = crypto.bytesToKey(clientKey);
+        SigningMode mode = getSigningMode(signingMode, nonce + 1);
+
         PublicKey auKey = crypto.bytesToKey(auditKey);
 
-        if (!users.containsKey(cliKey) || !users.containsKey(auKey))
-            throwError(ACCOUNT_DOES_NOT_EXIST, nonce + 1);
+        SessionManager.Session session = authorizeAudit(mode, clientKey, auKey, nonce, timestamp, pows, rid, signature, macs, since);
 
-        if (!validateUserNonce(users.get(cliKey), nonce, timestamp))
-            throwError(INVALID_NONCE, nonce + 1);
+        List<Transaction> transactions;
+        List<MyAdebProof> myAdebProofs;
+        Transaction anchor = Transaction.getDefaultInstance();
+        int total;
+        int historyWid;
+        byte[] historySig;
 
-        byte[] sig = crypto.byteStringToByteArray(signature);
-        String m = cliKey.toString() + auKey + nonce + timestamp + pows + rid;
+        accountLocks.lock(auKey);
+        try {
+            List<MyTransaction> totalTransactions = users.get(auKey).getTotalTransactions();
+            total = totalTransactions.size();
+
+            // a cursor past this server's history can't be answered incrementally, the client gets it all
+            if (since < 0 || since > total)
+                since = 0;
+
+            if (since > 0)
+                anchor = buildTransaction(totalTransactions.get(since - 1));
+
+            transactions = getTotalTransactions(auKey, since);
+            myAdebProofs = users.get(auKey).getAdebProofs();
+            historyWid = users.get(auKey).getHistoryWid();
+            historySig = users.get(auKey).getHistorySignature();
+        } finally {
+            accountLocks.unlock(auKey);
+        }
 
-        if (!crypto.validateMessage(cliKey, m, sig))
-            throwError(INVALID_SIGNATURE, nonce + 1);
+        List<AdebProof> adebProofs = convertToAdebProofs(myAdebProofs);
 
+        SignaturePayload messageToSign = crypto.payload(mode).add(transactions).add(nonce + 1).add(adebProofs).add(rid);
 
-        // --------------------- Proof of work ---------------------
+        if (since != 0)
+            messageToSign.add(since).add(total).add(anchor);
 
-        User user = users.get(cliKey);
+        return AuditResponse.newBuilder()
+                .addAllTransactions(transactions)
+                .setNonce(nonce + 1)
+                .addAllAdebProofs(adebProofs)
+                .setRid(rid)
+                .setSince(since)
+                .setTotal(total)
+                .setAnchor(anchor)
+                .setHistoryWid(historyWid)
+                .setHistorySignature(ByteString.copyFrom(historySig))
+                .setSignature(sign(session, messageToSign))
+                .build();
+    }
 
-        if (rid != user.getRid() + 1)
-            throwError(BYZANTINE_CLIENT, nonce + 1);
+    /**
+     * Same as audit, with the transactions returned in chunks of at most audit.chunkSize. The history is copied under the
+     * account lock, but each chunk is only built and signed when the caller asks for the next one.
+     */
+    public Iterator<AuditChunk> auditStream(
+            ByteString clientKey, ByteString auditKey, long nonce, long timestamp, Map<String, Long> pows, int rid, ByteString signature,
+            int signingMode, Map<String, SessionMac> macs, int since
+    ) {
 
-        if (pows != null && pows.get(this.sName) != null && !verifyProofOfWork(user, pows.get(this.sName)))
-            throwError(INVALID_POW, nonce + 1);
+        SigningMode mode = getSigningMode(signingMode, nonce + 1);
 
-        user.setRid(rid);
-        users.put(cliKey, user);
-        stateManager.saveState(users);
+        PublicKey auKey = crypto.bytesToKey(auditKey);
 
-        // ----------------------------------------------------------
+        SessionManager.Session session = authorizeAudit(mode, clientKey, auKey, nonce, timestamp, pows, rid, signature, macs, since);
 
-        List<Transaction> transactions = getTotalTransactions(auKey);
-        List<MyAdebProof> myAdebProofs = users.get(auKey).getAdebProofs();
+        List<MyTransaction> transactions;
+        List<MyAdebProof> myAdebProofs;
+        Transaction anchor = Transaction.getDefaultInstance();
+        int total;
+        int historyWid;
+        byte[] historySig;
 
-        List<AdebProof> adebProofs = convertToAdebProofs(myAdebProofs);
+        accountLocks.lock(auKey);
+        try {
+            List<MyTransaction> totalTransactions = users.get(auKey).getTotalTransactions();
+            total = totalTransactions.size();
 
-        String messageToSign = transactions.toString() + (nonce + 1) + adebProofs + rid;
+            if (since < 0 || since > total)
+                since = 0;
 
-        return AuditResponse.newBuilder()
-                .addAllTransactions(transactions)
+            if (since > 0)
+                anchor = buildTransaction(totalTransactions.get(since - 1));
+
+            transactions = new ArrayList<>(totalTransactions.subList(since, total));
+            myAdebProofs = users.get(auKey).getAdebProofs();
+            historyWid = users.get(auKey).getHistoryWid();
+            historySig = users.get(auKey).getHistorySignature();
+        } finally {
+            accountLocks.unlock(auKey);
+        }
+
+        AuditChunk header = AuditChunk.newBuilder()
                 .setNonce(nonce + 1)
-                .addAllAdebProofs(adebProofs)
                 .setRid(rid)
-                .setSignature(ByteString.copyFrom(crypto.encrypt(this.sName, messageToSign)))
+                .setSince(since)
+                .setTotal(total)
+                .setAnchor(anchor)
+                .setHistoryWid(historyWid)
+                .setHistorySignature(ByteString.copyFrom(historySig))
                 .build();
+
+        return new AuditChunks(mode, session, header, transactions, convertToAdebProofs(myAdebProofs));
     }
 
-    public ProofOfWorkResponse generateProofOfWork(ByteString publicKey, long nonce, long timestamp, ByteString signature) {
+    public ProofOfWorkResponse generateProofOfWork(
+            ByteString publicKey, long nonce, long timestamp, ByteString signature, int signingMode, Map<String, SessionMac> macs
+    ) {
+
+        SigningMode mode = getSigningMode(signingMode, nonce + 1);
 
         PublicKey cliKey = crypto.bytesToKey(publicKey);
 
@@ -373,12 +540,9 @@ public class ServerBackend implements Serializable {
         if (!validateUserNonce(user, nonce, timestamp))
             throwError(INVALID_NONCE, nonce + 1);
 
-        String message = cliKey.toString() + nonce + timestamp;
-
-        byte[] sig = crypto.byteStringToByteArray(signature);
+        SignaturePayload message = crypto.payload(mode).add(cliKey).add(nonce).add(timestamp);
 
-        if (!crypto.validateMessage(cliKey, message, sig))
-            throwError(INVALID_SIGNATURE, nonce + 1);
+        SessionManager.Session session = authenticate(cliKey, message, signature, macs, nonce);
 
 
         byte[] array = new byte[7]; // length is bounded by 7
@@ -387,26 +551,32 @@ public class ServerBackend implements Serializable {
 
         byte[] hashChallenge = crypto.encrypt(this.sName, challenge);
 
-        users.get(cliKey).addChallenge(challenge);
-        stateManager.saveState(users);
+        accountLocks.lock(cliKey);
+        try {
+            stateManager.commit(users, new StateRecord.Challenge(cliKey, hashChallenge, crypto.generateTimestamp()));
+        } finally {
+            accountLocks.unlock(cliKey);
+        }
 
 
-        message = cliKey.toString() + (nonce + 1) + this.sName + Arrays.toString(hashChallenge);
+        message = crypto.payload(mode).add(cliKey).add(nonce + 1).add(this.sName).add(hashChallenge);
 
         return ProofOfWorkResponse.newBuilder()
                 .setPublicKey(ByteString.copyFrom(cliKey.getEncoded()))
                 .setNonce(nonce + 1)
                 .setServerName(this.sName)
                 .setChallenge(ByteString.copyFrom(hashChallenge))
-                .setSignature(ByteString.copyFrom(crypto.encrypt(this.sName, message)))
+                .setSignature(sign(session, message))
                 .build();
     }
 
-    public CheckAccountWriteBackResponse checkAccountWriteBack(
+    public CompletableFuture<CheckAccountWriteBackResponse> checkAccountWriteBack(
             ByteString clientKey, ByteString checkKey, long nonce, long timestamp, List<Transaction> pendingTransactions,
-            int balance, int wid, ByteString pairSign, ByteString signature
+            int balance, int wid, ByteString pairSign, ByteString signature, int signingMode, Map<String, SessionMac> macs
     ) {
 
+        SigningMode mode = getSigningMode(signingMode, nonce + 1);
+
         PublicKey cliKey = crypto.bytesToKey(clientKey);
         PublicKey chKey = crypto.bytesToKey(checkKey);
 
@@ -421,47 +591,48 @@ public class ServerBackend implements Serializable {
         if (!crypto.validateMessage(chKey, wid + String.valueOf(balance), pairSig))
             throwError(INVALID_SIGNATURE, nonce + 1);
 
-        String message = cliKey.toString() + chKey + nonce + timestamp + pendingTransactions
-                + balance + wid + Arrays.toString(pairSig);
+        SignaturePayload message = crypto.payload(mode).add(cliKey).add(chKey).add(nonce).add(timestamp)
+                .add(pendingTransactions).add(balance).add(wid).add(pairSig);
 
-        byte[] sig = crypto.byteStringToByteArray(signature);
-
-        if (!crypto.validateMessage(cliKey, message, sig))
-            throwError(INVALID_SIGNATURE, nonce + 1);
+        SessionManager.Session session = authenticate(cliKey, message, signature, macs, nonce);
 
 
         // ------------------------ ADEB ------------------------
 
-        List<AdebProof> adebProofs = runAdeb(sig);
+        CompletableFuture<List<AdebProof>> adeb = runAdeb(crypto.digest(message), nonce);
 
         // ------------------------------------------------------
 
-        User checkUser = users.get(chKey);
-
-        if (wid == checkUser.getWid() + 1) {
-            checkUser.setBalance(balance);
-            checkUser.setWid(wid);
-            checkUser.setPairSignature(crypto.byteStringToByteArray(pairSign));
-            checkUser.setPendingTransactions(transactionsToTransactions(pendingTransactions));
-
-            List<MyAdebProof> myAdebProofs = convertToMyAdebProofs(adebProofs, wid);
-            checkUser.setAdebProofs(myAdebProofs);
-
-            users.put(chKey, checkUser);
-            stateManager.saveState(users);
-        }
-
-        return CheckAccountWriteBackResponse.newBuilder()
-                .setPublicKey(ByteString.copyFrom(cliKey.getEncoded()))
-                .setNonce(nonce + 1)
-                .setSignature(ByteString.copyFrom(crypto.encrypt(this.sName, cliKey.toString() + (nonce + 1))))
-                .build();
+        return adeb.thenApply(adebProofs -> {
+            accountLocks.lock(chKey);
+            try {
+                User checkUser = users.get(chKey);
+
+                if (wid == checkUser.getWid() + 1) {
+                    List<MyAdebProof> myAdebProofs = convertToMyAdebProofs(adebProofs, wid);
+
+                    stateManager.commit(users, new StateRecord.CheckAccountWriteBack(
+                            chKey, balance, wid, pairSig, transactionsToTransactions(pendingTransactions), myAdebProofs));
+                }
+            } finally {
+                accountLocks.unlock(chKey);
+            }
+
+            return CheckAccountWriteBackResponse.newBuilder()
+                    .setPublicKey(ByteString.copyFrom(cliKey.getEncoded()))
+                    .setNonce(nonce + 1)
+                    .setSignature(sign(session, crypto.payload(mode).add(cliKey).add(nonce + 1)))
+                    .build();
+        });
     }
 
-    public AuditWriteBackResponse auditWriteBack(
-            ByteString clientKey, ByteString auditKey, long nonce, long timestamp, List<Transaction> transactions, ByteString signature
+    public CompletableFuture<AuditWriteBackResponse> auditWriteBack(
+            ByteString clientKey, ByteString auditKey, long nonce, long timestamp, List<Transaction> transactions, ByteString signature,
+            int signingMode, Map<String, SessionMac> macs, int since, int historyWid, ByteString historySignature
     ) {
 
+        SigningMode mode = getSigningMode(signingMode, nonce + 1);
+
         PublicKey cliKey = crypto.bytesToKey(clientKey);
         PublicKey auKey = crypto.bytesToKey(auditKey);
 
@@ -471,266 +642,479 @@ public class ServerBackend implements Serializable {
         if (!validateUserNonce(users.get(cliKey), nonce, timestamp))
             throwError(INVALID_NONCE, nonce + 1);
 
-        String message = cliKey.toString() + auKey + nonce + timestamp + transactions;
+        SignaturePayload message = crypto.payload(mode).add(cliKey).add(auKey).add(nonce).add(timestamp).add(transactions);
 
-        byte[] sig = crypto.byteStringToByteArray(signature);
+        if (since != 0)
+            message.add(since);
 
-        if (!crypto.validateMessage(cliKey, message, sig))
-            throwError(INVALID_SIGNATURE, nonce + 1);
+        SessionManager.Session session = authenticate(cliKey, message, signature, macs, nonce);
+
+        // chained from this server's own root at since, so a client's history that differs from ours never matches
+        User audited = users.get(auKey);
+        boolean known = since >= 0 && since <= audited.getTotalTransactions().size();
+
+        List<MyTransaction> myTransactions = transactionsToTransactions(transactions);
+        List<byte[]> historyRoots = known ? chainTransactions(audited.getHistoryRoot(since), myTransactions) : null;
+        byte[] historySig = crypto.byteStringToByteArray(historySignature);
 
-        if (!validateTransactions(transactions, nonce + 1))
+        // transactions the owner's history signature covers don't need their own signatures checked
+        boolean covered = known && historyWid > since && historyWid <= since + transactions.size()
+                && validateHistorySignature(auKey, historyWid, historyRoots.get(historyWid - since - 1), historySig);
+        int coveredWid = covered ? historyWid : since;
+
+        if (!validateTransactions(transactions, since + 1, coveredWid, nonce + 1))
             throwError(BYZANTINE_CLIENT, nonce + 1);
 
         // ------------------------ ADEB ------------------------
 
-        List<AdebProof> adebProofs = runAdeb(sig);
+        CompletableFuture<List<AdebProof>> adeb = runAdeb(crypto.digest(message), nonce);
 
         // ------------------------------------------------------
 
-        User checkUser = users.get(auKey);
+        return adeb.thenApply(adebProofs -> {
+            accountLocks.lock(auKey);
+            try {
+                int wid = transactions.isEmpty() ? 0 : transactions.get(transactions.size() - 1).getWid();
+
+                int size = audited.getTotalTransactions().size();
+
+                // only the part of the client's history this server does not have yet is appended, if the part we
+                // both have ends at the same root
+                if (wid == users.get(cliKey).getWid() + 1 && known && size < since + transactions.size()
+                        && (size == since || Arrays.equals(audited.getHistoryRoot(size), historyRoots.get(size - since - 1)))) {
+                    List<MyAdebProof> myAdebProofs = convertToMyAdebProofs(adebProofs, wid);
+
+                    stateManager.commit(users, new StateRecord.AuditWriteBack(
+                            auKey, myTransactions.subList(size - since, myTransactions.size()), myAdebProofs,
+                            historyRoots.subList(size - since, historyRoots.size()),
+                            covered ? historyWid : 0, covered ? historySig : new byte[0]));
+                }
+            } finally {
+                accountLocks.unlock(auKey);
+            }
+
+
+            return AuditWriteBackResponse.newBuilder()
+                    .setPublicKey(ByteString.copyFrom(cliKey.getEncoded()))
+                    .setNonce(nonce + 1)
+                    .setSignature(sign(session, crypto.payload(mode).add(cliKey).add(nonce + 1)))
+                    .build();
+        });
+    }
 
-        int wid = transactions.isEmpty() ? 0 : transactions.get(transactions.size() - 1).getWid();
+    public RidResponse getRid(
+            ByteString publicKey, long nonce, long timestamp, ByteString signature, int signingMode, Map<String, SessionMac> macs
+    ) {
 
-        if (wid == users.get(cliKey).getWid() + 1) {
+        SigningMode mode = getSigningMode(signingMode, nonce + 1);
 
-            checkUser.setTotalTransactions(transactionsToTransactions(transactions));
+        PublicKey cliKey = crypto.bytesToKey(publicKey);
 
-            List<MyAdebProof> myAdebProofs = convertToMyAdebProofs(adebProofs, wid);
-            checkUser.setAdebProofs(myAdebProofs);
+        if (!users.containsKey(cliKey))
+            throwError(ACCOUNT_DOES_NOT_EXIST, nonce + 1);
 
-            users.put(auKey, checkUser);
-            stateManager.saveState(users);
-        }
+        User user = users.get(cliKey);
 
+        if (!validateUserNonce(user, nonce, timestamp))
+            throwError(INVALID_NONCE, nonce + 1);
+
+        SignaturePayload message = crypto.payload(mode).add(cliKey).add(nonce).add(timestamp);
+
+        SessionManager.Session session = authenticate(cliKey, message, signature, macs, nonce);
+
+
+        int rid = user.getRid();
+
+        message = crypto.payload(mode).add(cliKey).add(nonce + 1).add(rid);
 
-        return AuditWriteBackResponse.newBuilder()
+        return RidResponse.newBuilder()
                 .setPublicKey(ByteString.copyFrom(cliKey.getEncoded()))
                 .setNonce(nonce + 1)
-                .setSignature(ByteString.copyFrom(crypto.encrypt(this.sName, cliKey.toString() + (nonce + 1))))
+                .setRid(rid)
+                .setSignature(sign(session, message))
                 .build();
     }
 
-    public RidResponse getRid(ByteString publicKey, long nonce, long timestamp, ByteString signature) {
+    /**
+     * Ephemeral X25519 exchange authenticated by both account keys. The derived key then replaces the client's and this
+     * server's signatures on the requests that carry a mac for this server; pair and transaction signatures stay.
+     */
+    public OpenSessionResponse openSession(
+            ByteString publicKey, ByteString ephemeralKey, long nonce, long timestamp, ByteString signature, int signingMode
+    ) {
+
+        SigningMode mode = getSigningMode(signingMode, nonce + 1);
+
         PublicKey cliKey = crypto.bytesToKey(publicKey);
 
         if (!users.containsKey(cliKey))
             throwError(ACCOUNT_DOES_NOT_EXIST, nonce + 1);
 
-        User user = users.get(cliKey);
-
-        if (!validateUserNonce(user, nonce, timestamp))
+        if (!validateUserNonce(users.get(cliKey), nonce, timestamp))
             throwError(INVALID_NONCE, nonce + 1);
 
-        String message = cliKey.toString() + nonce + timestamp;
+        byte[] clientEphemeral = ephemeralKey.toByteArray();
+
+        SignaturePayload message = crypto.payload(mode).add(cliKey).add(clientEphemeral).add(nonce).add(timestamp);
 
         byte[] sig = crypto.byteStringToByteArray(signature);
 
         if (!crypto.validateMessage(cliKey, message, sig))
             throwError(INVALID_SIGNATURE, nonce + 1);
 
+        KeyPair keyPair = crypto.generateSessionKeyPair();
+        byte[] sessionKey = keyPair == null ? null : crypto.deriveSessionKey(keyPair.getPrivate(), clientEphemeral, this.sName);
 
-        int rid = user.getRid();
+        if (sessionKey == null)
+            throwError(INVALID_SIGNATURE, nonce + 1);
 
-        message = cliKey.toString() + (nonce + 1) + rid;
+        SessionManager.Session session = sessionManager.open(cliKey, sessionKey);
 
-        return RidResponse.newBuilder()
+        byte[] serverEphemeral = keyPair.getPublic().getEncoded();
+
+        message = crypto.payload(mode).add(cliKey).add(nonce + 1).add(this.sName).add(serverEphemeral)
+                .add(session.getId()).add(session.getExpiresAt());
+
+        return OpenSessionResponse.newBuilder()
                 .setPublicKey(ByteString.copyFrom(cliKey.getEncoded()))
                 .setNonce(nonce + 1)
-                .setRid(rid)
+                .setServerName(this.sName)
+                .setEphemeralKey(ByteString.copyFrom(serverEphemeral))
+                .setSessionId(session.getId())
+                .setExpiresAt(session.getExpiresAt())
                 .setSignature(ByteString.copyFrom(crypto.encrypt(this.sName, message)))
                 .build();
     }
 
     // ----------------------------------- ADEB -------------------------------------
 
+    public void shutdown() {
+        this.adebExecutor.shutdown();
+        this.adebManager.close();
+        this.adebFrontend.close();
+    }
 
-    /* On echo request receive:
-     * check signature/nonce
-     * check if recvInput == myInput
-     *     if true -> add echo in echos
-     * check if echos.size > (n+f)/2
-     *     if true -> send readys
+    /**
+     * Counters of the ADEB instances of this replica.
      */
+    public AdebManager getAdebManager() {
+        return adebManager;
+    }
 
-    public void echo(ByteString pubKeyString, String sName, ByteString input, long nonce, long ts, ByteString signature) {
 
-        System.out.println("Received echo from server " + sName);
+    /**
+     * Session for the echoes and readys sName sends to this server, see AdebFrontend.
+     * Only the replicas in the certificates folder can open one.
+     */
+    public AdebSessionResponse openReplicaSession(
+            ByteString pubKeyString, String sName, ByteString ephemeralKey, long nonce, long ts, ByteString signature
+    ) {
+        PublicKey pubKey = crypto.bytesToKey(pubKeyString);
 
-        byte[] inputByte = crypto.byteStringToByteArray(input);
+        if (!pubKey.equals(crypto.getPublicKey(sName)))
+            throwError(INVALID_SIGNATURE, nonce + 1);
 
-        doAdebVerifications(pubKeyString, sName, inputByte, nonce, ts, signature);
+        byte[] peerEphemeralKey = ephemeralKey.toByteArray();
 
-        AdebInstance adebInstance = adebManager.getOrAddAdebInstance(Arrays.toString(inputByte));
+        String message = pubKey.toString() + sName + Arrays.toString(peerEphemeralKey) + nonce + ts;
 
-        if (Arrays.equals(inputByte, adebInstance.getInput())) {
+        if (!crypto.validateMessage(pubKey, message, crypto.byteStringToByteArray(signature)))
+            throwError(INVALID_SIGNATURE, nonce + 1);
 
-            System.out.println("The echo input from server " + sName + " is the same as mine.");
+        if (!validateServerNonce(nonce, ts))
+            throwError(INVALID_NONCE, nonce + 1);
 
-            adebInstance.addEcho(inputByte);
-        }
+        KeyPair keyPair = crypto.generateSessionKeyPair();
+        byte[] sessionKey = keyPair == null ? null : crypto.deriveSessionKey(keyPair.getPrivate(), peerEphemeralKey, sName + "/" + this.sName);
 
-        PublicKey sKey = crypto.getPublicKey(this.sName);
+        if (sessionKey == null)
+            throwError(INVALID_SIGNATURE, nonce + 1);
 
-        if (adebInstance.getEchos().size() == adebInstance.getByzantineEchoQuorum() && !adebInstance.isSentReady()) {
+        SessionManager.Session session = replicaSessionManager.open(pubKey, sessionKey);
 
-            System.out.println("\nSending readys from echo...");
+        byte[] ownEphemeralKey = keyPair.getPublic().getEncoded();
 
-            sendReadys(input, sKey, adebInstance);
+        String response = this.sName + Arrays.toString(ownEphemeralKey) + session.getId() + session.getExpiresAt() + (nonce + 1);
+
+        return AdebSessionResponse.newBuilder()
+                .setSname(this.sName)
+                .setEphemeralKey(ByteString.copyFrom(ownEphemeralKey))
+                .setSessionId(session.getId())
+                .setExpiresAt(session.getExpiresAt())
+                .setNonce(nonce + 1)
+                .setSignature(ByteString.copyFrom(crypto.encrypt(this.sName, response)))
+                .build();
+    }
+
+
+    /* On echo request receive:
+     * check mac or signature/nonce (once for the whole batch)
+     * for each distinct input:
+     *     add the sender to the echos of that input's instance, a sender that already echoed it is ignored
+     *     check if echos.size > (n+f)/2
+     *         if true -> send readys
+     */
+
+    public void echo(
+            ByteString pubKeyString, String sName, List<ByteString> inputs, long nonce, long ts, ByteString signature,
+            Map<String, SessionMac> macs
+    ) {
+
+        System.out.println("Received echo from server " + sName + " (" + inputs.size() + " inputs)");
+
+        List<byte[]> inputBytes = byteStringsToByteArrays(inputs);
+
+        doAdebVerifications(pubKeyString, sName, inputBytes, nonce, ts, signature, macs);
+
+        for (Map.Entry<AdebKey, byte[]> entry : AdebKey.distinct(inputBytes).entrySet()) {
+            byte[] inputByte = entry.getValue();
+
+            // instances are keyed by their input, an echo for this instance is an echo for the same input
+            AdebInstance adebInstance = adebManager.getOrAddAdebInstance(entry.getKey());
+
+            if (adebInstance == null)   // too many instances alive, the input is dropped
+                continue;
+
+            synchronized (adebInstance) {
+                if (!adebInstance.addEcho(sName))   // a replica's echo counts once
+                    continue;
+
+                if (adebInstance.getEchoCount() == adebInstance.getByzantineEchoQuorum() && !adebInstance.isSentReady()) {
+
+                    System.out.println("\nSending readys from echo...");
+
+                    sendReadys(inputByte, adebInstance);
+                }
+            }
         }
     }
 
 
     /* On ready request receive:
-     *  check signature/nonce
-     *  check if recvInput == myInput
-     *       if true -> add ready in readys
-     *  check if readys.size > f and sentReady = false
-     *       if true -> send readys
-     *  else check if readys.size > 2f and sentReady = true and deliver = false
-     *       if true -> deliver
+     *  check mac or signature/nonce (once for the whole batch)
+     *  for each distinct input:
+     *       if not delivered yet: check the signature, if the mac was checked instead, and keep it as a proof
+     *       add the sender to the readys of that input's instance, a sender that already sent it is ignored
+     *       check if readys.size > f and sentReady = false
+     *            if true -> send readys
+     *       else check if readys.size > 2f and sentReady = true and deliver = false
+     *            if true -> deliver
      */
 
-    public void ready(ByteString pubKeyString, String sName, ByteString input, long nonce, long ts, ByteString signature) {
+    public void ready(
+            ByteString pubKeyString, String sName, List<ByteString> inputs, long nonce, long ts, ByteString signature,
+            Map<String, SessionMac> macs
+    ) {
 
-        System.out.println("Received ready from server " + sName);
+        System.out.println("Received ready from server " + sName + " (" + inputs.size() + " inputs)");
 
-        byte[] inputByte = crypto.byteStringToByteArray(input);
+        List<byte[]> inputBytes = byteStringsToByteArrays(inputs);
 
-        AdebProof adebProof = doAdebVerifications(pubKeyString, sName, inputByte, nonce, ts, signature);
+        // the proof is the signed batch, it is valid for every input in it
+        AdebProof adebProof = doAdebVerifications(pubKeyString, sName, inputBytes, nonce, ts, signature, macs);
 
-        AdebInstance adebInstance = adebManager.getOrAddAdebInstance(Arrays.toString(inputByte));
+        // only proofs that can still end up stored are worth a signature verification
+        boolean proofChecked = !macs.containsKey(this.sName);
 
-        if (Arrays.equals(inputByte, adebInstance.getInput())) {
+        for (Map.Entry<AdebKey, byte[]> entry : AdebKey.distinct(inputBytes).entrySet()) {
+            byte[] inputByte = entry.getValue();
 
-            System.out.println("The ready input from server " + sName + " is the same as mine.");
+            AdebInstance adebInstance = adebManager.getOrAddAdebInstance(entry.getKey());
 
-            adebInstance.addAdebProof(adebProof);
-            adebInstance.addReady(inputByte);
-        }
+            if (adebInstance == null)
+                continue;
 
-        PublicKey sKey = crypto.getPublicKey(this.sName);
+            if (!proofChecked && !adebInstance.isDelivered()) {
+                if (!crypto.validateMessage(crypto.bytesToKey(pubKeyString), adebProof.getMessage(), crypto.byteStringToByteArray(signature)))
+                    throwError(INVALID_SIGNATURE, nonce + 1);
+
+                proofChecked = true;
+            }
+
+            synchronized (adebInstance) {
+                if (!adebInstance.addReady(sName))  // a replica's ready counts once, and so does its proof
+                    continue;
 
-        if (adebInstance.getReadys().size() > this.nByzantineServers && !adebInstance.isSentReady()) {
+                if (!adebInstance.isDelivered())
+                    adebInstance.addAdebProof(adebProof);
 
-            System.out.println("Sending readys...");
+                if (adebInstance.getReadyCount() > this.nByzantineServers && !adebInstance.isSentReady()) {
 
-            sendReadys(input, sKey, adebInstance);
+                    System.out.println("Sending readys...");
 
-        } else if (adebInstance.getReadys().size() == adebInstance.getByzantineReadyQuorum()
-                && adebInstance.isSentReady()
-                && !adebInstance.isDelivered()) {
+                    sendReadys(inputByte, adebInstance);
 
-            adebInstance.setDelivered(true);
-            adebInstance.countDown();
+                } else if (adebInstance.getReadyCount() == adebInstance.getByzantineReadyQuorum()
+                        && adebInstance.isSentReady()
+                        && !adebInstance.isDelivered()) {
+
+                    adebInstance.deliver();
+                }
+            }
         }
 
     }
 
 
-    private void sendReadys(ByteString input, PublicKey sKey, AdebInstance adebInstance) {
+    private void sendReadys(byte[] input, AdebInstance adebInstance) {
 
         adebInstance.setSentReady(true);
+        this.readyBatcher.add(input);
+
+    }
+
+    private void broadcastEchos(List<byte[]> inputs) {
+
+        PublicKey pubKey = crypto.getPublicKey(this.sName);
+        long echoNonce = crypto.generateNonce();
+        long ts = crypto.generateTimestamp();
+
+        String message = pubKey.toString() + this.sName + adebInputsToString(inputs) + echoNonce + ts;
+
+        Map<String, SessionMac> macs = this.adebFrontend.macs(message);
+
+        // echoes are not kept, replicas with a session only need the mac
+        ByteString signature = macs.size() == 3 * this.nByzantineServers + 1
+                ? ByteString.EMPTY
+                : ByteString.copyFrom(crypto.encrypt(this.sName, message));
+
+        this.adebFrontend.echo(
+                EchoRequest.newBuilder()
+                        .addAllInputs(byteArraysToByteStrings(inputs))
+                        .setNonce(echoNonce)
+                        .setTimestamp(ts)
+                        .setSname(this.sName)
+                        .setKey(ByteString.copyFrom(pubKey.getEncoded()))
+                        .setSignature(signature)
+                        .putAllMacs(macs)
+                        .build()
+        );
+
+    }
 
+    private void broadcastReadys(List<byte[]> inputs) {
+
+        PublicKey sKey = crypto.getPublicKey(this.sName);
         long readyNonce = crypto.generateNonce();
         long readyTs = crypto.generateTimestamp();
-        byte[] inputBytes = crypto.byteStringToByteArray(input);
 
-        String message = sKey.toString() + this.sName + Arrays.toString(inputBytes) + readyNonce + readyTs;
+        String message = sKey.toString() + this.sName + adebInputsToString(inputs) + readyNonce + readyTs;
 
         byte[] readySignature = crypto.encrypt(this.sName, message);
 
-        adebInstance.getAdebFrontend().ready(
+        this.adebFrontend.ready(
                 ReadyRequest.newBuilder()
-                        .setInput(ByteString.copyFrom(inputBytes))
+                        .addAllInputs(byteArraysToByteStrings(inputs))
                         .setNonce(readyNonce)
                         .setTimestamp(readyTs)
                         .setSname(this.sName)
                         .setKey(ByteString.copyFrom(sKey.getEncoded()))
                         .setSignature(ByteString.copyFrom(readySignature))
+                        .putAllMacs(this.adebFrontend.macs(message))
                         .build()
         );
 
     }
 
 
-    private List<AdebProof> runAdeb(byte[] clientInput) {
-
-        List<AdebProof> adebProofs = new LinkedList<>();
-
-        AdebInstance adebInstance = new AdebInstance(this.nByzantineServers);
-        this.adebManager.addInstance(Arrays.toString(clientInput), adebInstance);
-
-        if (!adebInstance.isSentEcho()) {
-
-            System.out.println("Running ADEB...\n");
-            adebInstance.setLatch(new CountDownLatch(1));
+    /**
+     * Queues the echo and returns right away; the future completes, on the ADEB executor,
+     * once the ready quorum for this input has been received.
+     * The request is refused if adeb.maxInFlight broadcasts started here are still running, and fails if
+     * it does not deliver within adeb.timeoutMillis (e.g. not enough replicas accepted it), freeing its slot.
+     */
+    private CompletableFuture<List<AdebProof>> runAdeb(byte[] clientInput, long nonce) {
 
-            adebInstance.setInput(clientInput);
-            adebInstance.setSentEcho(true);
+        if (!this.adebManager.tryStart())
+            throwError(SERVER_BUSY, nonce + 1);
 
-            // echo
-            PublicKey pubKey = crypto.getPublicKey(this.sName);
-            long echoNonce = crypto.generateNonce();
-            long ts = crypto.generateTimestamp();
+        AdebKey key = AdebKey.of(clientInput);
 
-            String message = pubKey.toString() + this.sName + Arrays.toString(clientInput) + echoNonce + ts;
+        // other replicas may have echoed this input already
+        AdebInstance adebInstance = this.adebManager.getOrAddAdebInstance(key);
 
-            byte[] signature = crypto.encrypt(this.sName, message);
+        if (adebInstance == null) {
+            this.adebManager.finish();
+            throwError(SERVER_BUSY, nonce + 1);
+        }
 
-            adebInstance.getAdebFrontend().echo(
-                    EchoRequest.newBuilder()
-                            .setInput(ByteString.copyFrom(clientInput))
-                            .setNonce(echoNonce)
-                            .setTimestamp(ts)
-                            .setSname(this.sName)
-                            .setKey(ByteString.copyFrom(pubKey.getEncoded()))
-                            .setSignature(ByteString.copyFrom(signature)).build()
-            );
+        System.out.println("Running ADEB...\n");
 
-            await(adebInstance.getLatch());
-            System.out.println("ADEB ENDED!! All servers synchronized\n\n");
+        synchronized (adebInstance) {
+            adebInstance.setInput(clientInput);
 
-            adebProofs = adebInstance.getAdebProof();
-            //adebInstance.getAdebFrontend().close();
-            this.adebManager.removeAdebInstance(Arrays.toString(clientInput));
+            if (!adebInstance.isSentEcho()) {
+                adebInstance.setSentEcho(true);
+                this.echoBatcher.add(clientInput);
+            }
         }
 
-        return adebProofs;
+        // the continuation must not run on the ready handler that delivered, it would commit while holding it
+        return adebInstance.getDelivery()
+                .orTimeout(this.adebTimeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((adebProofs, throwable) -> {
+                    this.adebManager.finish();
+
+                    // a delivered instance is left to the sweeper, it still collects the late echoes and readys
+                    if (throwable != null)
+                        this.adebManager.removeAdebInstance(key, adebInstance);
+                })
+                .handleAsync((adebProofs, throwable) -> {
+                    if (throwable != null)
+                        throwError(BROADCAST_TIMEOUT, nonce + 1);
+
+                    System.out.println("ADEB ENDED!! All servers synchronized\n\n");
+                    return adebProofs;
+                }, this.adebExecutor);
     }
 
-    // ------------------------------------ AUX -------------------------------------
-
-    private void transactionAmount(int amount, String senderName, String receiverName, PublicKey sourceKey, PublicKey destKey, int wid, boolean sent, byte[] signature) {
-        User user = users.get(destKey);
+    /**
+     * Signed form of a batch of inputs. A batch of one reads exactly like the single input messages.
+     */
+    private String adebInputsToString(List<byte[]> inputs) {
+        StringBuilder builder = new StringBuilder();
+        inputs.forEach(input -> builder.append(Arrays.toString(input)));
+        return builder.toString();
+    }
 
-        List<MyTransaction> totalTransactions = user.getTotalTransactions();
-        totalTransactions.add(new MyTransaction(amount, senderName, receiverName, sourceKey, destKey, wid, sent, signature));
+    private List<byte[]> byteStringsToByteArrays(List<ByteString> inputs) {
+        List<byte[]> inputBytes = new ArrayList<>();
+        inputs.forEach(input -> inputBytes.add(input.toByteArray()));
+        return inputBytes;
+    }
 
-        user.setTotalTransactions(totalTransactions);
-        user.setBalance(user.getBalance() + amount);
-        users.put(destKey, user);
+    private List<ByteString> byteArraysToByteStrings(List<byte[]> inputs) {
+        List<ByteString> inputStrings = new ArrayList<>();
+        inputs.forEach(input -> inputStrings.add(ByteString.copyFrom(input)));
+        return inputStrings;
     }
 
-    private void addPendingTransaction(int amount, String senderName, String receiverName, PublicKey sourceKey, PublicKey destKey, int wid, boolean sent, byte[] signature) {
-        User user = users.get(destKey);
+    // ------------------------------------ AUX -------------------------------------
 
-        List<MyTransaction> destPendingMyTransactions = user.getPendingTransactions();
-        destPendingMyTransactions.add(new MyTransaction(amount, senderName, receiverName, sourceKey, destKey, wid, sent, signature)); // added to the dest pending transactions list
+    /**
+     * The receiver signs its own copies of the pending transactions, with its own wids, so they are matched to the page
+     * by sender, amount and the wid each one has in its sender's history.
+     */
+    private boolean isPendingPage(List<Transaction> transactions, List<Integer> senderWids, List<MyTransaction> page) {
+        if (transactions.size() != page.size() || senderWids.size() != page.size())
+            return false;
+
+        for (int i = 0; i < page.size(); i++)
+            if (transactions.get(i).getAmount() != page.get(i).getAmount()
+                    || senderWids.get(i) != page.get(i).getWid()
+                    || !crypto.bytesToKey(transactions.get(i).getSenderKey()).equals(page.get(i).getSenderKey()))
+                return false;
 
-        user.setPendingTransactions(destPendingMyTransactions);
-        users.put(destKey, user);
+        return true;
     }
 
+    private List<Transaction> getTotalTransactions(PublicKey key, int from) {
+        List<MyTransaction> totalTransactions = users.get(key).getTotalTransactions();
+        List<Transaction> transactions = new ArrayList<>(totalTransactions.size() - from);
 
-    private List<Transaction> getPendingTransactions(PublicKey key) {
-        List<Transaction> transactions = new ArrayList<>();
-        users.get(key).getPendingTransactions().forEach(transaction -> transactions.add(buildTransaction(transaction)));
-        return transactions;
-    }
+        for (MyTransaction transaction : totalTransactions.subList(from, totalTransactions.size()))
+            transactions.add(buildTransaction(transaction));
 
-    private List<Transaction> getTotalTransactions(PublicKey key) {
-        List<Transaction> transactions = new ArrayList<>();
-        users.get(key).getTotalTransactions().forEach(transaction -> transactions.add(buildTransaction(transaction)));
         return transactions;
     }
 
@@ -767,6 +1151,24 @@ public class ServerBackend implements Serializable {
         return myTransactions;
     }
 
+    /**
+     * @return the history root after each of the transactions, appended to a history with this root.
+     */
+    private List<byte[]> chainTransactions(byte[] root, List<MyTransaction> transactions) {
+        List<byte[]> roots = new ArrayList<>(transactions.size());
+
+        for (MyTransaction transaction : transactions) {
+            root = crypto.chain(root, buildTransaction(transaction));
+            roots.add(root);
+        }
+
+        return roots;
+    }
+
+    private boolean validateHistorySignature(PublicKey key, int wid, byte[] root, byte[] signature) {
+        return crypto.validateMessage(key, crypto.historyPayload(wid, root), signature);
+    }
+
     private List<MyAdebProof> convertToMyAdebProofs(List<AdebProof> adebProofs, int wid) {
         List<MyAdebProof> myAdebProofs = Collections.synchronizedList(new ArrayList<>());
 
@@ -807,13 +1209,17 @@ public class ServerBackend implements Serializable {
         return this.nonceManager.validateNonce(nonce, timestamp);
     }
 
-    private boolean validateTransactions(List<Transaction> transactions, long nonce) {
+    /**
+     * @param coveredWid transactions up to this wid are covered by a history signature and only their wids are checked.
+     */
+    private boolean validateTransactions(List<Transaction> transactions, int firstWid, int coveredWid, long nonce) {
 
-        int checkWid = 1;
+        int checkWid = firstWid;
 
         for (Transaction transaction : transactions) {
 
-            validateTransaction(transaction, nonce);
+            if (transaction.getWid() > coveredWid)
+                validateTransaction(transaction, nonce);
 
             if (checkWid != transaction.getWid())
                 return false;
@@ -839,30 +1245,53 @@ public class ServerBackend implements Serializable {
             throwError(INVALID_SIGNATURE, nonce + 1);
     }
 
-    public boolean verifyProofOfWork(User u, long pow) {
-        long now = System.currentTimeMillis() / 1000;
-
-        for (String challenge : u.getChallenges().keySet()) {
-
-            long challengeTs = u.getChallenges().get(challenge);
-            byte[] challengeHash = crypto.encrypt(this.sName, challenge);
+    /**
+     * The challenges of an old snapshot are kept as sent, signed by this server, see generateProofOfWork,
+     * and its histories are chained as they would have been when the transactions were added.
+     */
+    private void upgradeUser(User user) {
+        user.upgradeChallenges(challenge -> crypto.encrypt(this.sName, challenge));
+        user.upgradeHistory(transactions -> chainTransactions(new byte[0], transactions));
+    }
 
-            if (now - challengeTs < 600 && crypto.verifyProofOfWork(challengeHash, pow)) // 10 minute gap
+    public boolean verifyProofOfWork(User u, long pow) {
+        for (byte[] challengeHash : u.getChallenges().getLive(crypto.generateTimestamp()))
+            if (crypto.verifyProofOfWork(challengeHash, pow))
                 return true;
-        }
 
         return false;
     }
 
-    private AdebProof doAdebVerifications(ByteString pubKeyString, String sName, byte[] input, long nonce, long ts, ByteString signature) {
+    /**
+     * Checks the sender with this server's mac when the message carries one, with its signature otherwise.
+     */
+    private AdebProof doAdebVerifications(
+            ByteString pubKeyString, String sName, List<byte[]> inputs, long nonce, long ts, ByteString signature,
+            Map<String, SessionMac> macs
+    ) {
         PublicKey pubKey = crypto.bytesToKey(pubKeyString);
 
-        String newMessage = pubKey.toString() + sName + Arrays.toString(input) + nonce + ts;
+        // echoes and readys are counted by sender, a replica can only speak for itself
+        if (!pubKey.equals(crypto.getPublicKey(sName)))
+            throwError(INVALID_SIGNATURE, nonce + 1);
 
-        byte[] sig = crypto.byteStringToByteArray(signature);
+        String newMessage = pubKey.toString() + sName + adebInputsToString(inputs) + nonce + ts;
 
-        if (!crypto.validateMessage(pubKey, newMessage, sig))
-            throwError(INVALID_SIGNATURE, nonce + 1);
+        SessionMac sessionMac = macs.get(this.sName);
+
+        if (sessionMac == null) {
+            if (!crypto.validateMessage(pubKey, newMessage, crypto.byteStringToByteArray(signature)))
+                throwError(INVALID_SIGNATURE, nonce + 1);
+
+        } else {
+            SessionManager.Session session = replicaSessionManager.get(sessionMac.getSessionId());
+
+            if (session == null || !session.getClientKey().equals(pubKey))
+                throwError(INVALID_SESSION, nonce + 1);
+
+            if (!crypto.validateMac(session.getKey(), newMessage, sessionMac.getMac().toByteArray()))
+                throwError(INVALID_SIGNATURE, nonce + 1);
+        }
 
         if (!validateServerNonce(nonce, ts))
             throwError(INVALID_NONCE, nonce + 1);
@@ -871,6 +1300,100 @@ public class ServerBackend implements Serializable {
     }
 
 
+    /**
+     * Checks an audit request and takes its rid, the part audit and auditStream have in common.
+     */
+    private SessionManager.Session authorizeAudit(
+            SigningMode mode, ByteString clientKey, PublicKey auKey, long nonce, long timestamp, Map<String, Long> pows, int rid,
+            ByteString signature, Map<String, SessionMac> macs, int since
+    ) {
+
+        PublicKey cliKey = crypto.bytesToKey(clientKey);
+
+        if (!users.containsKey(cliKey) || !users.containsKey(auKey))
+            throwError(ACCOUNT_DOES_NOT_EXIST, nonce + 1);
+
+        if (!validateUserNonce(users.get(cliKey), nonce, timestamp))
+            throwError(INVALID_NONCE, nonce + 1);
+
+        SignaturePayload m = crypto.payload(mode).add(cliKey).add(auKey).add(nonce).add(timestamp).add(pows).add(rid);
+
+        if (since != 0)
+            m.add(since);
+
+        SessionManager.Session session = authenticate(cliKey, m, signature, macs, nonce);
+
+
+        // --------------------- Proof of work ---------------------
+
+        accountLocks.lock(cliKey);
+        try {
+            User user = users.get(cliKey);
+
+            if (rid != user.getRid() + 1)
+                throwError(BYZANTINE_CLIENT, nonce + 1);
+
+            if (pows != null && pows.get(this.sName) != null && !verifyProofOfWork(user, pows.get(this.sName)))
+                throwError(INVALID_POW, nonce + 1);
+
+            stateManager.commit(users, new StateRecord.Rid(cliKey, rid));
+        } finally {
+            accountLocks.unlock(cliKey);
+        }
+
+        // ----------------------------------------------------------
+
+        return session;
+    }
+
+    /**
+     * Checks the request against this server's mac when it carries one, against the client's signature otherwise.
+     * @return the session the request was authenticated with, null if it was signed.
+     */
+    private SessionManager.Session authenticate(
+            PublicKey clientKey, SignaturePayload message, ByteString signature, Map<String, SessionMac> macs, long nonce
+    ) {
+
+        SessionMac sessionMac = macs.get(this.sName);
+
+        if (sessionMac == null) {
+            if (!crypto.validateMessage(clientKey, message, crypto.byteStringToByteArray(signature)))
+                throwError(INVALID_SIGNATURE, nonce + 1);
+
+            return null;
+        }
+
+        SessionManager.Session session = sessionManager.get(sessionMac.getSessionId());
+
+        if (session == null || !session.getClientKey().equals(clientKey))
+            throwError(INVALID_SESSION, nonce + 1);
+
+        if (!crypto.validateMac(session.getKey(), message, sessionMac.getMac().toByteArray()))
+            throwError(INVALID_SIGNATURE, nonce + 1);
+
+        return session;
+    }
+
+    /**
+     * Responses are authenticated the same way as the request they answer.
+     */
+    private ByteString sign(SessionManager.Session session, SignaturePayload message) {
+        if (session == null)
+            return ByteString.copyFrom(crypto.encrypt(this.sName, message));
+
+        return ByteString.copyFrom(crypto.mac(session.getKey(), message));
+    }
+
+
+    private SigningMode getSigningMode(int version, long nonce) {
+        SigningMode mode = SigningMode.fromVersion(version);
+
+        if (mode == null)
+            throwError(INVALID_SIGNING_MODE, nonce);
+
+        return mode;
+    }
+
     private void initServerKeys() {
         this.crypto.generateKeyStore(this.sName);
     }
@@ -884,11 +1407,68 @@ public class ServerBackend implements Serializable {
         );
     }
 
-    public static void await(CountDownLatch finishLatch) {
-        try {
-            finishLatch.await();
-        } catch (InterruptedException ignored) {
+
+    /**
+     * The chunks of a streamed audit. The first one carries the header fields and the last one the adeb proofs; an empty
+     * history is a single chunk that is both.
+     */
+    private class AuditChunks implements Iterator<AuditChunk> {
+
+        private final SigningMode mode;
+        private final SessionManager.Session session;
+        private final AuditChunk header;
+        private final List<MyTransaction> transactions;
+        private final List<AdebProof> adebProofs;
+
+        private int index = 0;
+        private int next = 0;
+
+        private AuditChunks(
+                SigningMode mode, SessionManager.Session session, AuditChunk header, List<MyTransaction> transactions,
+                List<AdebProof> adebProofs
+        ) {
+            this.mode = mode;
+            this.session = session;
+            this.header = header;
+            this.transactions = transactions;
+            this.adebProofs = adebProofs;
         }
-    }
 
+        @Override
+        public boolean hasNext() {
+            return index == 0 || next < transactions.size();
+        }
+
+        @Override
+        public AuditChunk next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            int end = Math.min(next + auditChunkSize, transactions.size());
+            boolean last = end == transactions.size();
+
+            List<Transaction> chunkTransactions = new ArrayList<>(end - next);
+
+            for (MyTransaction transaction : transactions.subList(next, end))
+                chunkTransactions.add(buildTransaction(transaction));
+
+            AuditChunk.Builder chunk = index == 0 ? header.toBuilder() : AuditChunk.newBuilder()
+                    .setNonce(header.getNonce())
+                    .setRid(header.getRid());
+
+            chunk.setIndex(index).addAllTransactions(chunkTransactions).setLast(last);
+
+            if (last)
+                chunk.addAllAdebProofs(adebProofs);
+
+            SignaturePayload messageToSign = crypto.payload(mode).add(chunkTransactions).add(chunk.getNonce()).add(chunk.getRid())
+                    .add(index).add(chunk.getSince()).add(chunk.getTotal()).add(chunk.getAnchor()).add(chunk.getAdebProofsList())
+                    .add(last);
+
+            index++;
+            next = end;
+
+            return chunk.setSignature(sign(session, messageToSign)).build();
+        }
+    }
 }
@@ -0,0 +1,87 @@
+package pt.tecnico.bank.server.domain;
+
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Client sessions opened on this server, by session id.
+ * Sessions are not persisted, like nonces: after a restart clients get INVALID_SESSION and fall back to signatures.
+ */
+public class SessionManager {
+
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long ttlSeconds;
+
+    public SessionManager(long ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    public Session open(PublicKey clientKey, byte[] key) {
+        long now = System.currentTimeMillis() / 1000;
+
+        sessions.values().removeIf(session -> session.isExpired(now));
+
+        while (true) {
+            long id = random.nextLong();
+
+            if (id == 0)    // 0 is the proto default
+                continue;
+
+            Session session = new Session(id, clientKey, key, now + ttlSeconds);
+
+            if (sessions.putIfAbsent(id, session) == null)
+                return session;
+        }
+    }
+
+    /**
+     * @return the session, or null if it does not exist or has expired.
+     */
+    public Session get(long id) {
+        Session session = sessions.get(id);
+
+        if (session != null && session.isExpired(System.currentTimeMillis() / 1000)) {
+            sessions.remove(id, session);
+            return null;
+        }
+
+        return session;
+    }
+
+    public static class Session {
+
+        private final long id;
+        private final PublicKey clientKey;
+        private final byte[] key;
+        private final long expiresAt;
+
+        private Session(long id, PublicKey clientKey, byte[] key, long expiresAt) {
+            this.id = id;
+            this.clientKey = clientKey;
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public PublicKey getClientKey() {
+            return clientKey;
+        }
+
+        public byte[] getKey() {
+            return key;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
@@ -1,25 +1,286 @@
 package pt.tecnico.bank.server.domain;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.security.PublicKey;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
+/**
+ * Persists the server state as a snapshot (data.txt) plus a write-ahead log (wal.log) of the
+ * records committed since that snapshot. Each commit appends only its own record; every
+ * SNAPSHOT_INTERVAL records the whole state is written to a new snapshot and the log is truncated.
+ *
+ * Log writes are group committed: records from concurrent requests are queued and a single flusher
+ * thread writes them in batches of up to maxBatchSize (waiting at most maxDelayMillis for a batch to fill)
+ * with one fsync per batch. A commit only returns once the batch holding its record is durable, and only then
+ * applies the record, so a record the log failed to take never shows in the state.
+ */
 public class StateManager {
 
+    private static final int SNAPSHOT_INTERVAL = 1000;
+    private static final int DEFAULT_MAX_BATCH_SIZE = 128;
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 1;
+
     private final Path dataPath;
+    private final Path walPath;
     private final String sName;
 
+    // commits hold the read lock, snapshots the write lock, so a snapshot never sees a half-applied record
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private final AtomicBoolean snapshotting = new AtomicBoolean(false);
+
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final BlockingQueue<PendingRecord> pendingRecords = new LinkedBlockingQueue<>();
+    private final Object walLock = new Object();
+
+    private FileChannel wal;
+    // set when a failed batch could not be cut off the log, records appended after it would be lost on replay
+    private volatile boolean walBroken = false;
+    private long lastSeq = 0;
+    private long snapshotSeq = 0;
+
     public StateManager(String sName) {
+        this(sName,
+                Integer.getInteger("wal.maxBatchSize", DEFAULT_MAX_BATCH_SIZE),
+                Long.getLong("wal.maxDelayMillis", DEFAULT_MAX_DELAY_MILLIS));
+    }
+
+    public StateManager(String sName, int maxBatchSize, long maxDelayMillis) {
+        this(sName, Paths.get(System.getProperty("user.dir"), "storage", sName), maxBatchSize, maxDelayMillis);
+    }
+
+    StateManager(String sName, Path storagePath, int maxBatchSize, long maxDelayMillis) {
         this.sName = sName;
-        dataPath = Paths.get(System.getProperty("user.dir"), "storage", this.sName, "data.txt");
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        dataPath = storagePath.resolve("data.txt");
+        walPath = storagePath.resolve("wal.log");
+    }
+
+    /**
+     * @param upgrade brings the accounts of a snapshot written by an older version up to date, before the log
+     *                records are applied on top of them.
+     */
+    ConcurrentHashMap<PublicKey, User> loadState(Consumer<User> upgrade) {
+        ConcurrentHashMap<PublicKey, User> users = loadSnapshot();
+
+        users.values().forEach(upgrade);
+
+        replayLog(users);
+
+        try {
+            this.wal = openLog(walPath);
+            this.wal.position(this.wal.size());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        Thread flusher = new Thread(this::flushLoop, this.sName + "-wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+
+        return users;
+    }
+
+    /**
+     * Makes the record durable, then applies it to the in-memory state. If the log can't take it the state is left
+     * as it was and the error is thrown.
+     * Callers must hold the locks of the accounts the record touches.
+     */
+    void commit(ConcurrentHashMap<PublicKey, User> users, StateRecord record) {
+        // held until the record is applied, so a snapshot tagged with lastSeq holds every record up to it
+        snapshotLock.readLock().lock();
+        try {
+            PendingRecord pending = enqueue(record);
+            awaitDurable(pending);
+            record.apply(users);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+
+        if (lastSeq - snapshotSeq >= SNAPSHOT_INTERVAL && snapshotting.compareAndSet(false, true)) {
+            try {
+                saveState(users);
+            } finally {
+                snapshotting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes the state to a new snapshot and, once that is on disk, drops the log records it includes.
+     * If the snapshot can't be written the log is kept as is and the error is thrown.
+     */
+    void saveState(ConcurrentHashMap<PublicKey, User> users) {
+        snapshotLock.writeLock().lock();
+        Path tmpPathFile = null;
+        try {
+            byte[] snapshotBytes = objectToBytes(new Snapshot(this.lastSeq, users));
+
+            Path storagePath = dataPath.getParent();
+            tmpPathFile = Files.createTempFile(storagePath, "atomic", "tmp");
+
+            try (FileChannel channel = FileChannel.open(tmpPathFile, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(snapshotBytes);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                channel.force(true);
+            }
+
+            Files.move(tmpPathFile, dataPath, StandardCopyOption.ATOMIC_MOVE);
+            tmpPathFile = null;
+
+            // the rename is only durable once the directory is
+            try (FileChannel directory = FileChannel.open(storagePath, StandardOpenOption.READ)) {
+                directory.force(true);
+            }
+
+            // records up to lastSeq are in the snapshot, they would be skipped on replay anyway
+            this.snapshotSeq = this.lastSeq;
+            if (this.wal != null) {
+                synchronized (walLock) {
+                    this.wal.truncate(0);
+                }
+            }
+
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not save a snapshot, the log is kept", e);
+        } finally {
+            if (tmpPathFile != null)
+                deleteQuietly(tmpPathFile);
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    // aux
+
+    FileChannel openLog(Path walPath) throws IOException {
+        return FileChannel.open(walPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    private synchronized PendingRecord enqueue(StateRecord record) {
+        if (this.walBroken)
+            throw new IllegalStateException("The log could not recover from a failed write, no more records are accepted");
+
+        record.setSeq(this.lastSeq + 1);
+        byte[] recordBytes = objectToBytes(record);
+
+        CRC32 crc = new CRC32();
+        crc.update(recordBytes);
+
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + Long.BYTES + recordBytes.length);
+        buffer.putInt(recordBytes.length).putLong(crc.getValue()).put(recordBytes).flip();
+
+        // enqueued while holding the monitor, so records reach the log in sequence order
+        PendingRecord pending = new PendingRecord(buffer);
+        this.pendingRecords.add(pending);
+        this.lastSeq++;
+
+        return pending;
     }
 
-    ConcurrentHashMap<PublicKey, User> loadState() {
+    private void awaitDurable(PendingRecord pending) {
+        try {
+            pending.durable.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw new UncheckedIOException((IOException) e.getCause());
+            throw new IllegalStateException("Could not write to the log", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the log", e);
+        }
+    }
+
+    private void flushLoop() {
+        List<PendingRecord> batch = new ArrayList<>();
+
+        while (true) {
+            try {
+                batch.add(this.pendingRecords.take());
+                this.pendingRecords.drainTo(batch, this.maxBatchSize - batch.size());
+
+                long deadline = System.nanoTime() + this.maxDelayNanos;
+                while (batch.size() < this.maxBatchSize) {
+                    PendingRecord next = this.pendingRecords.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long start = -1;
+            try {
+                synchronized (walLock) {
+                    if (this.walBroken)
+                        throw new IOException("The log could not recover from a failed write");
+
+                    start = this.wal.position();
+                    for (PendingRecord pending : batch)
+                        while (pending.buffer.hasRemaining())
+                            this.wal.write(pending.buffer);
+                    this.wal.force(false);
+                }
+                batch.forEach(pending -> pending.durable.complete(null));
+            } catch (IOException | RuntimeException e) {
+                dropFailedBatch(start);
+                batch.forEach(pending -> pending.durable.completeExceptionally(e));
+            }
+
+            batch.clear();
+        }
+    }
+
+    /**
+     * Cuts a batch that failed, maybe half written, off the log: a torn record would end the replay there and lose the
+     * batches written after it. If the log can't be cut either, it takes no more records.
+     */
+    private void dropFailedBatch(long start) {
+        synchronized (walLock) {
+            if (this.walBroken)
+                return;
+
+            try {
+                if (start < 0)
+                    throw new IOException("Unknown log position before the failed batch");
+
+                this.wal.truncate(start);
+                this.wal.position(start);
+                this.wal.force(true);
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                this.walBroken = true;
+            }
+        }
+    }
+
+    private ConcurrentHashMap<PublicKey, User> loadSnapshot() {
         ConcurrentHashMap<PublicKey, User> users = new ConcurrentHashMap<>();
         try (FileInputStream fis = new FileInputStream(dataPath.toString());
              ObjectInputStream ois = new ObjectInputStream(fis)) {
-            users = (ConcurrentHashMap<PublicKey, User>) ois.readObject();
+            Object state = ois.readObject();
+
+            if (state instanceof Snapshot) {
+                Snapshot snapshot = (Snapshot) state;
+                users = snapshot.users;
+                this.snapshotSeq = snapshot.seq;
+            } else {
+                users = (ConcurrentHashMap<PublicKey, User>) state;     // snapshot written before the log existed
+            }
+            this.lastSeq = this.snapshotSeq;
+
         } catch (FileNotFoundException fnfe) {
             try {
                 Files.createDirectories(dataPath.getParent());
@@ -35,33 +296,98 @@ public class StateManager {
         return users;
     }
 
-    void saveState(ConcurrentHashMap<PublicKey, User> users) {
-        try {
-            byte[] userBytes = mapToBytes(users);
+    private void replayLog(ConcurrentHashMap<PublicKey, User> users) {
+        if (!Files.exists(walPath))
+            return;
 
-            Path tmpPath = Paths.get(System.getProperty("user.dir"), "storage", this.sName);
-            Path tmpPathFile = File.createTempFile("atomic", "tmp", new File(tmpPath.toString())).toPath();
-            Files.write(tmpPathFile, userBytes, StandardOpenOption.APPEND);
+        long validLength = 0;
 
-            Files.move(tmpPathFile, dataPath, StandardCopyOption.ATOMIC_MOVE);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(walPath.toString())))) {
+            while (true) {
+                int length = in.readInt();
+                long checksum = in.readLong();
+                byte[] recordBytes = new byte[length];
+                in.readFully(recordBytes);
+
+                CRC32 crc = new CRC32();
+                crc.update(recordBytes);
+                if (crc.getValue() != checksum)
+                    break;
+
+                StateRecord record = (StateRecord) bytesToObject(recordBytes);
+                if (record.getSeq() > this.lastSeq) {
+                    record.apply(users);
+                    this.lastSeq = record.getSeq();
+                }
+                validLength += Integer.BYTES + Long.BYTES + length;
+            }
+        } catch (EOFException ignored) {
+            // end of the log, or a record torn by a crash
+        } catch (IOException | ClassNotFoundException | NegativeArraySizeException e) {
+            e.printStackTrace();
+        }
+
+        // drop a torn tail so new records are appended after the last valid one
+        try (FileChannel channel = FileChannel.open(walPath, StandardOpenOption.WRITE)) {
+            channel.truncate(validLength);
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
-    byte[] mapToBytes(ConcurrentHashMap<PublicKey, User> users) {
+    byte[] objectToBytes(Object object) {
         try {
             ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
             ObjectOutputStream out = new ObjectOutputStream(byteOut);
-            out.writeObject(users);
-            byte[] userBytes = byteOut.toByteArray();
+            out.writeObject(object);
             out.flush();
+            byte[] bytes = byteOut.toByteArray();
             byteOut.close();
-            return userBytes;
+            return bytes;
         } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
     }
+
+    private Object bytesToObject(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * A framed record waiting in the group commit queue.
+     */
+    private static class PendingRecord {
+
+        private final ByteBuffer buffer;
+        private final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        private PendingRecord(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * The whole state, tagged with the sequence number of the last record it includes.
+     */
+    private static class Snapshot implements Serializable {
+
+        private final long seq;
+        private final ConcurrentHashMap<PublicKey, User> users;
+
+        private Snapshot(long seq, ConcurrentHashMap<PublicKey, User> users) {
+            this.seq = seq;
+            this.users = users;
+        }
+    }
 }
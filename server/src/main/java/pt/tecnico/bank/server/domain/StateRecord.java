@@ -0,0 +1,227 @@
+package pt.tecnico.bank.server.domain;
+
+import pt.tecnico.bank.server.domain.adeb.MyAdebProof;
+
+import java.io.Serializable;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single state mutation, as written to the write-ahead log.
+ * The same record is applied to the live state when the operation commits and again when the log is replayed,
+ * so a record only carries what the operation changed.
+ */
+public abstract class StateRecord implements Serializable {
+
+    private long seq;
+
+    long getSeq() {
+        return seq;
+    }
+
+    void setSeq(long seq) {
+        this.seq = seq;
+    }
+
+    abstract void apply(Map<PublicKey, User> users);
+
+
+    static class OpenAccount extends StateRecord {
+
+        private final User user;
+
+        OpenAccount(User user) {
+            this.user = user;
+        }
+
+        @Override
+        void apply(Map<PublicKey, User> users) {
+            users.putIfAbsent(user.getPubKey(), user);
+        }
+    }
+
+    static class SendAmount extends StateRecord {
+
+        private final PublicKey senderKey;
+        private final PublicKey receiverKey;
+        private final MyTransaction transaction;
+        private final int balance;
+        private final int wid;
+        private final byte[] pairSignature;
+        private final List<MyAdebProof> adebProofs;
+        private final byte[] historyRoot;
+        private final byte[] historySignature;
+
+        SendAmount(PublicKey senderKey, PublicKey receiverKey, MyTransaction transaction, int balance, int wid,
+                   byte[] pairSignature, List<MyAdebProof> adebProofs, byte[] historyRoot, byte[] historySignature) {
+            this.senderKey = senderKey;
+            this.receiverKey = receiverKey;
+            this.transaction = transaction;
+            this.balance = balance;
+            this.wid = wid;
+            this.pairSignature = pairSignature;
+            this.adebProofs = adebProofs;
+            this.historyRoot = historyRoot;
+            this.historySignature = historySignature;
+        }
+
+        @Override
+        void apply(Map<PublicKey, User> users) {
+            users.get(receiverKey).getPendingTransactions().add(transaction);  // added to the dest pending transactions list
+
+            User sender = users.get(senderKey);
+            sender.addTransaction(transaction, historyRoot);
+            if (historySignature.length > 0)
+                sender.setHistorySignature(wid, historySignature);
+            sender.setAdebProofs(adebProofs);
+            sender.setBalance(balance);
+            sender.setWid(wid);
+            sender.setPairSignature(pairSignature);
+        }
+    }
+
+    static class ReceiveAmount extends StateRecord {
+
+        private final PublicKey key;
+        private final List<MyTransaction> transactions;
+        private final int wid;
+        private final byte[] pairSignature;
+        private final List<MyAdebProof> adebProofs;
+        private final List<byte[]> historyRoots;
+        private final byte[] historySignature;
+        private final List<MyTransaction> received;
+
+        ReceiveAmount(PublicKey key, List<MyTransaction> transactions, int wid, byte[] pairSignature, List<MyAdebProof> adebProofs,
+                      List<byte[]> historyRoots, byte[] historySignature, List<MyTransaction> received) {
+            this.key = key;
+            this.transactions = transactions;
+            this.wid = wid;
+            this.pairSignature = pairSignature;
+            this.adebProofs = adebProofs;
+            this.historyRoots = historyRoots;
+            this.historySignature = historySignature;
+            this.received = new ArrayList<>(received);
+        }
+
+        @Override
+        void apply(Map<PublicKey, User> users) {
+            User user = users.get(key);
+
+            for (int i = 0; i < transactions.size(); i++) {
+                user.addTransaction(transactions.get(i), historyRoots.get(i));
+                user.setBalance(user.getBalance() + transactions.get(i).getAmount());
+            }
+
+            if (historySignature.length > 0)
+                user.setHistorySignature(wid, historySignature);
+
+            // only what was received leaves the pending list, transfers that arrived meanwhile stay pending
+            user.removePendingTransactions(received);
+
+            user.setWid(wid);
+            user.setPairSignature(pairSignature);
+            user.setAdebProofs(adebProofs);
+        }
+    }
+
+    static class Rid extends StateRecord {
+
+        private final PublicKey key;
+        private final int rid;
+
+        Rid(PublicKey key, int rid) {
+            this.key = key;
+            this.rid = rid;
+        }
+
+        @Override
+        void apply(Map<PublicKey, User> users) {
+            users.get(key).setRid(rid);
+        }
+    }
+
+    static class Challenge extends StateRecord {
+
+        private final PublicKey key;
+        private final byte[] hash;
+        private final long timestamp;
+
+        Challenge(PublicKey key, byte[] hash, long timestamp) {
+            this.key = key;
+            this.hash = hash;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        void apply(Map<PublicKey, User> users) {
+            users.get(key).addChallenge(hash, timestamp);
+        }
+    }
+
+    static class CheckAccountWriteBack extends StateRecord {
+
+        private final PublicKey key;
+        private final int balance;
+        private final int wid;
+        private final byte[] pairSignature;
+        private final List<MyTransaction> pendingTransactions;
+        private final List<MyAdebProof> adebProofs;
+
+        CheckAccountWriteBack(PublicKey key, int balance, int wid, byte[] pairSignature,
+                              List<MyTransaction> pendingTransactions, List<MyAdebProof> adebProofs) {
+            this.key = key;
+            this.balance = balance;
+            this.wid = wid;
+            this.pairSignature = pairSignature;
+            this.pendingTransactions = pendingTransactions;
+            this.adebProofs = adebProofs;
+        }
+
+        @Override
+        void apply(Map<PublicKey, User> users) {
+            User user = users.get(key);
+            user.setBalance(balance);
+            user.setWid(wid);
+            user.setPairSignature(pairSignature);
+            user.setPendingTransactions(Collections.synchronizedList(new ArrayList<>(pendingTransactions)));
+            user.setAdebProofs(adebProofs);
+        }
+    }
+
+    static class AuditWriteBack extends StateRecord {
+
+        private final PublicKey key;
+        private final List<MyTransaction> newTransactions;
+        private final List<MyAdebProof> adebProofs;
+        private final List<byte[]> historyRoots;
+        private final int historyWid;
+        private final byte[] historySignature;
+
+        AuditWriteBack(PublicKey key, List<MyTransaction> newTransactions, List<MyAdebProof> adebProofs,
+                       List<byte[]> historyRoots, int historyWid, byte[] historySignature) {
+            this.key = key;
+            this.newTransactions = newTransactions;
+            this.adebProofs = adebProofs;
+            this.historyRoots = historyRoots;
+            this.historyWid = historyWid;
+            this.historySignature = historySignature;
+        }
+
+        @Override
+        void apply(Map<PublicKey, User> users) {
+            User user = users.get(key);
+
+            for (int i = 0; i < newTransactions.size(); i++)
+                user.addTransaction(newTransactions.get(i), historyRoots.get(i));
+
+            // only a verified signature replaces the stored one, an uncovered write-back carries none
+            if (historySignature.length > 0 && historyWid > user.getHistoryWid())
+                user.setHistorySignature(historyWid, historySignature);
+
+            user.setAdebProofs(adebProofs);
+        }
+    }
+}
@@ -2,15 +2,24 @@ package pt.tecnico.bank.server.domain;
 
 import pt.tecnico.bank.server.domain.adeb.MyAdebProof;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.security.PublicKey;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 public class User implements Serializable {
 
-    private final PublicKey pubKey;
-    private final String username;
+    private static final long serialVersionUID = -3399014565092559223L;
+
+    private static final Comparator<MyTransaction> PENDING_ORDER = Comparator
+            .comparing((MyTransaction transaction) -> transaction.getSenderKey().getEncoded(), Arrays::compare)
+            .thenComparingInt(MyTransaction::getWid);
+
+    // not final, readObject sets them
+    private PublicKey pubKey;
+    private String username;
     private int wid;
     private int rid;
     private byte[] pairSignature;
@@ -18,8 +27,16 @@ public class User implements Serializable {
     private List<MyTransaction> totalTransactions = Collections.synchronizedList(new ArrayList<>());    // transaction = (key, amount)
     private List<MyTransaction> pendingMyTransactions = Collections.synchronizedList(new ArrayList<>());
     private List<MyAdebProof> adebProofs = Collections.synchronizedList(new ArrayList<>());
-    private final NonceManager nonceManager = new NonceManager();
-    private ConcurrentHashMap<String, Long> challenges = new ConcurrentHashMap<>();
+    private NonceManager nonceManager = new NonceManager();
+    private ChallengeIndex challenges = new ChallengeIndex();
+    // challenges of a snapshot written before the index, by challenge, until upgradeChallenges signs them
+    private transient Map<String, Long> legacyChallenges;
+
+    // hash chain over totalTransactions: the root after each of them, see Crypto.chain
+    private List<byte[]> historyRoots = Collections.synchronizedList(new ArrayList<>());
+    // the owner's latest signature over (wid, root), it covers the history up to historyWid
+    private int historyWid;
+    private byte[] historySignature = new byte[0];
 
 
     public User(PublicKey pubKey, String username, int wid, int balance, byte[] pairSignature) {
@@ -74,8 +91,33 @@ public class User implements Serializable {
         return totalTransactions;
     }
 
-    public void setTotalTransactions(List<MyTransaction> totalTransactions) {
-        this.totalTransactions = totalTransactions;
+    public void addTransaction(MyTransaction transaction, byte[] historyRoot) {
+        this.totalTransactions.add(transaction);
+        this.historyRoots.add(historyRoot);
+    }
+
+    /**
+     * @return the history root after the transaction with this wid, empty for 0.
+     */
+    public byte[] getHistoryRoot(int wid) {
+        return wid == 0 ? new byte[0] : historyRoots.get(wid - 1);
+    }
+
+    public byte[] getHistoryRoot() {
+        return getHistoryRoot(historyRoots.size());
+    }
+
+    public int getHistoryWid() {
+        return historyWid;
+    }
+
+    public byte[] getHistorySignature() {
+        return historySignature;
+    }
+
+    public void setHistorySignature(int historyWid, byte[] historySignature) {
+        this.historyWid = historyWid;
+        this.historySignature = historySignature;
     }
 
     public List<MyAdebProof> getAdebProofs() {
@@ -90,6 +132,34 @@ public class User implements Serializable {
         return pendingMyTransactions;
     }
 
+    /**
+     * @return at most limit pending transactions (all of them for 0) after the first cursor ones. Pages are in sender key
+     * then sender wid order, as transfers from different senders can be pending in a different order at each replica;
+     * the whole list (cursor and limit 0) is in arrival order.
+     */
+    public List<MyTransaction> getPendingPage(int cursor, int limit) {
+        List<MyTransaction> pending = new ArrayList<>(pendingMyTransactions);
+
+        if (cursor == 0 && limit == 0)
+            return pending;
+
+        pending.sort(PENDING_ORDER);
+
+        int from = Math.min(Math.max(cursor, 0), pending.size());
+        int to = limit > 0 ? Math.min(from + limit, pending.size()) : pending.size();
+
+        return pending.subList(from, to);
+    }
+
+    /**
+     * Removes the received transactions from the pending ones, matching them by sender key and sender wid, so the same
+     * transactions leave the list when the log is replayed and the pending list holds other copies of them.
+     */
+    public void removePendingTransactions(List<MyTransaction> received) {
+        pendingMyTransactions.removeIf(pending -> received.stream()
+                .anyMatch(transaction -> PENDING_ORDER.compare(pending, transaction) == 0));
+    }
+
     public void setPendingTransactions(List<MyTransaction> pendingMyTransactions) {
         this.pendingMyTransactions = pendingMyTransactions;
     }
@@ -98,12 +168,70 @@ public class User implements Serializable {
         return nonceManager;
     }
 
-    public ConcurrentHashMap<String, Long> getChallenges() {
+    public ChallengeIndex getChallenges() {
         return challenges;
     }
 
-    public void addChallenge(String challenge) {
-        this.challenges.put(challenge, System.currentTimeMillis() / 1000);
+    public void addChallenge(byte[] hash, long timestamp) {
+        this.challenges.add(hash, timestamp);
+    }
+
+    /**
+     * Moves the challenges of a snapshot written before the index into it. The index keeps them as sent to the
+     * client, the old snapshots only have the challenges themselves.
+     * @param sign the server's signature over a challenge.
+     */
+    public void upgradeChallenges(Function<String, byte[]> sign) {
+        if (this.legacyChallenges == null)
+            return;
+
+        this.legacyChallenges.entrySet().stream()
+                .sorted(Map.Entry.comparingByValue())
+                .forEach(challenge -> this.challenges.add(sign.apply(challenge.getKey()), challenge.getValue()));
+
+        this.legacyChallenges = null;
+    }
+
+    /**
+     * Chains the history of a snapshot written before the roots were kept.
+     * @param chain the roots after each of the transactions, chained from the empty root.
+     */
+    public void upgradeHistory(Function<List<MyTransaction>, List<byte[]>> chain) {
+        if (this.historyRoots == null)
+            this.historyRoots = Collections.synchronizedList(new ArrayList<>(chain.apply(this.totalTransactions)));
+    }
+
+    /**
+     * Snapshots written before the challenge index hold the challenges in a map, which the default
+     * deserialization can't assign to the index. Those written before the history chain have no roots,
+     * upgradeHistory computes them.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+
+        this.pubKey = (PublicKey) fields.get("pubKey", null);
+        this.username = (String) fields.get("username", null);
+        this.wid = fields.get("wid", 0);
+        this.rid = fields.get("rid", 0);
+        this.pairSignature = (byte[]) fields.get("pairSignature", null);
+        this.balance = fields.get("balance", 0);
+        this.totalTransactions = (List<MyTransaction>) fields.get("totalTransactions", null);
+        this.pendingMyTransactions = (List<MyTransaction>) fields.get("pendingMyTransactions", null);
+        this.adebProofs = (List<MyAdebProof>) fields.get("adebProofs", null);
+        this.nonceManager = (NonceManager) fields.get("nonceManager", null);
+        this.historyRoots = (List<byte[]>) fields.get("historyRoots", null);
+        this.historyWid = fields.get("historyWid", 0);
+        this.historySignature = (byte[]) fields.get("historySignature", new byte[0]);
+
+        Object challenges = fields.get("challenges", null);
+
+        if (challenges instanceof ChallengeIndex) {
+            this.challenges = (ChallengeIndex) challenges;
+        } else {
+            this.challenges = new ChallengeIndex();
+            this.legacyChallenges = (Map<String, Long>) challenges;
+        }
     }
 
     @Override
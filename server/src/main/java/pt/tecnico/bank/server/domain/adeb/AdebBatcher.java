@@ -0,0 +1,66 @@
+package pt.tecnico.bank.server.domain.adeb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects the inputs this replica has to echo (or ready) and hands them to the sender in batches,
+ * so a single signed message and a single round trip per replica covers many client requests.
+ * A batch is sent once it holds maxBatchSize inputs or maxDelayMillis after its first input arrived.
+ */
+public class AdebBatcher {
+
+    private final BlockingQueue<byte[]> pendingInputs = new LinkedBlockingQueue<>();
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final Consumer<List<byte[]>> sender;
+
+    public AdebBatcher(String name, int maxBatchSize, long maxDelayMillis, Consumer<List<byte[]>> sender) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.sender = sender;
+
+        Thread batcher = new Thread(this::batchLoop, name);
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    public void add(byte[] input) {
+        this.pendingInputs.add(input);
+    }
+
+    // aux
+
+    private void batchLoop() {
+        List<byte[]> batch = new ArrayList<>();
+
+        while (true) {
+            try {
+                batch.add(this.pendingInputs.take());
+                this.pendingInputs.drainTo(batch, this.maxBatchSize - batch.size());
+
+                long deadline = System.nanoTime() + this.maxDelayNanos;
+                while (batch.size() < this.maxBatchSize) {
+                    byte[] next = this.pendingInputs.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                this.sender.accept(new ArrayList<>(batch));
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+
+            batch.clear();
+        }
+    }
+}
@@ -1,62 +1,218 @@
 package pt.tecnico.bank.server.domain.adeb;
 
+import com.google.protobuf.ByteString;
+import io.grpc.ConnectivityState;
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import pt.tecnico.bank.crypto.Crypto;
+import pt.tecnico.bank.server.grpc.Adeb.AdebSessionRequest;
+import pt.tecnico.bank.server.grpc.Adeb.AdebSessionResponse;
 import pt.tecnico.bank.server.grpc.Adeb.EchoRequest;
 import pt.tecnico.bank.server.grpc.Adeb.ReadyRequest;
 import pt.tecnico.bank.server.grpc.AdebServiceGrpc;
+import pt.tecnico.bank.server.grpc.Server.SessionMac;
 
 import java.io.Closeable;
-import java.util.ArrayList;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
+/**
+ * Server-wide pool of channels to the replicas, shared by every ADEB instance.
+ * Channels are opened once when the server starts and kept for its lifetime; each peer tracks
+ * the outcome of its last calls so a failing peer can be reconnected without waiting for the backoff.
+ * Each peer also gets a session (see openSession), so echoes and readys can be authenticated with a mac.
+ */
 public class AdebFrontend implements Closeable {
 
-    private final List<ManagedChannel> channels;
-    private final Map<String, AdebServiceGrpc.AdebServiceStub> stubs;
+    private final String sName;
+    private final Crypto crypto;
+    private final Map<String, Peer> peers;
 
-    public AdebFrontend(int nByzantineServers) {
-        this.stubs = new HashMap<>();
-        this.channels = new ArrayList<>();
+    public AdebFrontend(String sName, int nByzantineServers, Crypto crypto) {
+        this.sName = sName;
+        this.crypto = crypto;
+        this.peers = new LinkedHashMap<>();
 
         for (int i = 0; i < 3 * nByzantineServers + 1; i++)
             createNewChannel(i);
     }
 
+    /**
+     * Starts connecting to every replica, so the first broadcast does not pay for the handshakes.
+     */
+    public void warmUp() {
+        this.peers.values().forEach(peer -> peer.channel.getState(true));
+        openSessions();
+    }
 
     public void echo(EchoRequest request) {
 
-        this.stubs.keySet().forEach( sName -> {
-            try {
-                stubs.get(sName).withDeadlineAfter(10, TimeUnit.SECONDS)
-                        .echo(request, new AdebObserver<>());
-            } catch (StatusRuntimeException sre) {
-                exceptionHandler(sre);
-            }
-        });
+        broadcast((sName, peer) -> peer.stub().withDeadlineAfter(10, TimeUnit.SECONDS)
+                .echo(request, observer(peer, request.getMacsMap().get(sName))));
 
     }
 
     public void ready(ReadyRequest request) {
 
-        this.stubs.keySet().forEach( sName -> {
+        broadcast((sName, peer) -> peer.stub().withDeadlineAfter(10, TimeUnit.SECONDS)
+                .ready(request, observer(peer, request.getMacsMap().get(sName))));
+
+    }
+
+    /**
+     * Macs of the message for every replica a session is open with. Sessions are (re)opened in the background
+     * with the replicas that have none, until then they need the message signed.
+     */
+    public Map<String, SessionMac> macs(String message) {
+        Map<String, SessionMac> macs = new HashMap<>();
+
+        this.peers.forEach((sName, peer) -> {
+            ReplicaSession session = peer.session;
+
+            if (session != null && !session.isExpired())
+                macs.put(sName, SessionMac.newBuilder()
+                        .setSessionId(session.getId())
+                        .setMac(ByteString.copyFrom(crypto.mac(session.getKey(), message)))
+                        .build());
+        });
+
+        if (macs.size() < this.peers.size())
+            openSessions();
+
+        return macs;
+    }
+
+    public PeerHealth getHealth(String sName) {
+        Peer peer = this.peers.get(sName);
+        return peer == null ? null : peer.health;
+    }
+
+
+    // aux
+
+    private void openSessions() {
+        this.peers.forEach((sName, peer) -> {
+            ReplicaSession session = peer.session;
+
+            if ((session == null || session.isExpired()) && peer.opening.compareAndSet(false, true))
+                openSession(sName, peer);
+        });
+    }
+
+    /**
+     * Ephemeral X25519 exchange with a replica, each side signing its half. The key derived is only used for
+     * the messages this server sends to it, the replica opens its own for the other direction.
+     */
+    private void openSession(String peerName, Peer peer) {
+
+        KeyPair keyPair = crypto.generateSessionKeyPair();
+        PublicKey pubKey = crypto.getPublicKey(this.sName);
+
+        if (keyPair == null || pubKey == null) {
+            peer.opening.set(false);
+            return;
+        }
+
+        byte[] ephemeralKey = keyPair.getPublic().getEncoded();
+        long nonce = crypto.generateNonce();
+        long ts = crypto.generateTimestamp();
+
+        String message = pubKey.toString() + this.sName + Arrays.toString(ephemeralKey) + nonce + ts;
+
+        AdebSessionRequest request = AdebSessionRequest.newBuilder()
+                .setKey(ByteString.copyFrom(pubKey.getEncoded()))
+                .setSname(this.sName)
+                .setEphemeralKey(ByteString.copyFrom(ephemeralKey))
+                .setNonce(nonce)
+                .setTimestamp(ts)
+                .setSignature(ByteString.copyFrom(crypto.encrypt(this.sName, message)))
+                .build();
+
+        Context.current().fork().run(() -> {
             try {
-                stubs.get(sName).withDeadlineAfter(10, TimeUnit.SECONDS)
-                        .ready(request, new AdebObserver<>());
+                peer.stub().withDeadlineAfter(10, TimeUnit.SECONDS).openSession(request, new StreamObserver<AdebSessionResponse>() {
+                    @Override
+                    public void onNext(AdebSessionResponse res) {
+                        peer.session = getSession(peerName, nonce, keyPair, res);
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        peer.health.failure();
+                        peer.opening.set(false);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        peer.health.success();
+                        peer.opening.set(false);
+                    }
+                });
             } catch (StatusRuntimeException sre) {
-                exceptionHandler(sre);
+                peer.health.failure();
+                peer.opening.set(false);
             }
         });
+    }
 
+    private ReplicaSession getSession(String peerName, long nonce, KeyPair keyPair, AdebSessionResponse res) {
+
+        byte[] peerEphemeralKey = res.getEphemeralKey().toByteArray();
+
+        String message = res.getSname() + Arrays.toString(peerEphemeralKey) + res.getSessionId() + res.getExpiresAt() + res.getNonce();
+
+        if (!peerName.equals(res.getSname())
+                || res.getNonce() != nonce + 1
+                || !crypto.validateMessage(crypto.getPublicKey(peerName), message, crypto.byteStringToByteArray(res.getSignature())))
+            return null;
+
+        byte[] key = crypto.deriveSessionKey(keyPair.getPrivate(), peerEphemeralKey, this.sName + "/" + peerName);
+
+        return key == null ? null : new ReplicaSession(res.getSessionId(), key, res.getExpiresAt());
     }
 
+    /**
+     * A replica that refuses a mac'd message has most likely lost the session (e.g. it restarted), a new one is opened.
+     */
+    private <R> AdebObserver<R> observer(Peer peer, SessionMac mac) {
+        if (mac == null)
+            return new AdebObserver<>(peer.health);
 
-    // aux
+        return new AdebObserver<>(peer.health, () -> {
+            ReplicaSession session = peer.session;
+
+            if (session != null && session.getId() == mac.getSessionId())
+                peer.session = null;
+        });
+    }
+
+    /**
+     * Sends outside the context of the call being handled: broadcasts are often started from an echo/ready
+     * handler, and would otherwise be cancelled as soon as that handler answers.
+     */
+    private void broadcast(BiConsumer<String, Peer> send) {
+        Context.current().fork().run(() ->
+                this.peers.forEach((sName, peer) -> {
+                    try {
+                        send.accept(sName, peer);
+                    } catch (StatusRuntimeException sre) {
+                        peer.health.failure();
+                        exceptionHandler(sre);
+                    }
+                })
+        );
+    }
 
     private void exceptionHandler(StatusRuntimeException sre) {
         if (sre.getStatus().getCode() != Status.DEADLINE_EXCEEDED.getCode())
@@ -69,8 +225,7 @@ public class AdebFrontend implements Closeable {
     private void createNewChannel(int index) {
         try {
             ManagedChannel newChannel = ManagedChannelBuilder.forAddress("localhost", 8080 + index).usePlaintext().build();
-            this.channels.add(newChannel);
-            this.stubs.put("Server" + (index + 1), AdebServiceGrpc.newStub(newChannel));
+            this.peers.put("Server" + (index + 1), new Peer(newChannel));
         } catch (RuntimeException sre) {
             System.out.println("ERROR : RecFrontend createNewChannel : Could not create channel\n"
                     + sre.getMessage());
@@ -79,9 +234,8 @@ public class AdebFrontend implements Closeable {
 
     @Override
     public final void close() {
-        //this.channels.forEach(ManagedChannel::shutdown);
-
-        for (ManagedChannel managedChannel : this.channels) {
+        for (Peer peer : this.peers.values()) {
+            ManagedChannel managedChannel = peer.channel;
             managedChannel.shutdown();
             try {
                 if (!managedChannel.awaitTermination(3500, TimeUnit.MILLISECONDS)) {
@@ -92,4 +246,25 @@ public class AdebFrontend implements Closeable {
             }
         }
     }
+
+    private static class Peer {
+
+        private final ManagedChannel channel;
+        private final AdebServiceGrpc.AdebServiceStub stub;
+        private final PeerHealth health = new PeerHealth();
+        private final AtomicBoolean opening = new AtomicBoolean();
+        private volatile ReplicaSession session;
+
+        private Peer(ManagedChannel channel) {
+            this.channel = channel;
+            this.stub = AdebServiceGrpc.newStub(channel);
+        }
+
+        private AdebServiceGrpc.AdebServiceStub stub() {
+            // a peer that has been failing is retried right away instead of after the channel's backoff
+            if (!health.isHealthy() && channel.getState(false) == ConnectivityState.TRANSIENT_FAILURE)
+                channel.resetConnectBackoff();
+            return stub;
+        }
+    }
 }
@@ -3,35 +3,36 @@ package pt.tecnico.bank.server.domain.adeb;
 import pt.tecnico.bank.server.grpc.Server.AdebProof;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * State of one broadcast. Not thread-safe: callers synchronize on the instance.
+ */
 public class AdebInstance {
 
-    private final AdebFrontend adebFrontend;
     private final int byzantineEchoQuorum;
     private final int byzantineReadyQuorum;
     private byte[] input = null;
     private boolean sentEcho = false;
     private boolean sentReady = false;
-    private boolean delivered = false;
-    private final List<byte[]> echos = new ArrayList<>();
-    private final List<byte[]> readys = new ArrayList<>();
+    private volatile boolean delivered = false;    // also read without the lock, it only ever goes from false to true
+    // replicas that echoed and readied the input, each one counts once towards the quorums
+    private final Set<String> echoSenders = new HashSet<>();
+    private final Set<String> readySenders = new HashSet<>();
     private final List<AdebProof> adebProof = new ArrayList<>();
-    private CountDownLatch latch;
+    private final CompletableFuture<List<AdebProof>> delivery = new CompletableFuture<>();
+    private final long createdAt = System.currentTimeMillis();
+    private long deliveredAt = 0;
 
     public AdebInstance(int nByzantineServers) {
-        this.adebFrontend = new AdebFrontend(nByzantineServers);
-
         int nServers = 3 * nByzantineServers + 1;
         this.byzantineEchoQuorum = (nServers + nByzantineServers) / 2 + 1;      //  > (N + f) / 2
         this.byzantineReadyQuorum = 2 * nByzantineServers + 1;                  //  > 2f
     }
 
-    public AdebFrontend getAdebFrontend() {
-        return adebFrontend;
-    }
-
     public int getByzantineEchoQuorum() {
         return byzantineEchoQuorum;
     }
@@ -72,20 +73,26 @@ public class AdebInstance {
         this.delivered = delivered;
     }
 
-    public List<byte[]> getEchos() {
-        return echos;
+    public int getEchoCount() {
+        return echoSenders.size();
     }
 
-    public void addEcho(byte[] echo) {
-        this.echos.add(echo);
+    /**
+     * @return false if sName had already echoed the input.
+     */
+    public boolean addEcho(String sName) {
+        return this.echoSenders.add(sName);
     }
 
-    public List<byte[]> getReadys() {
-        return readys;
+    public int getReadyCount() {
+        return readySenders.size();
     }
 
-    public void addReady(byte[] ready) {
-        this.readys.add(ready);
+    /**
+     * @return false if sName had already sent a ready for the input.
+     */
+    public boolean addReady(String sName) {
+        return this.readySenders.add(sName);
     }
 
     public List<AdebProof> getAdebProof() {
@@ -96,15 +103,38 @@ public class AdebInstance {
         this.adebProof.add(adebProof);
     }
 
-    public CountDownLatch getLatch() {
-        return latch;
+    /**
+     * Completed with the ready proofs once the instance delivers.
+     */
+    public CompletableFuture<List<AdebProof>> getDelivery() {
+        return delivery;
+    }
+
+    public void deliver() {
+        this.delivered = true;
+        this.deliveredAt = System.currentTimeMillis();
+        this.delivery.complete(new ArrayList<>(this.adebProof));
+    }
+
+    /**
+     * Gives up on the instance, a request waiting for it fails.
+     */
+    public void expire() {
+        this.delivery.completeExceptionally(new IllegalStateException("ADEB instance expired before delivering"));
+    }
+
+    /**
+     * @return true once the instance expired or its request timed out, it will never deliver.
+     */
+    public boolean isExpired() {
+        return this.delivery.isCompletedExceptionally();
     }
 
-    public void setLatch(CountDownLatch latch) {
-        this.latch = latch;
+    public long getCreatedAt() {
+        return createdAt;
     }
 
-    public void countDown() {
-        this.latch.countDown();
+    public long getDeliveredAt() {
+        return deliveredAt;
     }
 }
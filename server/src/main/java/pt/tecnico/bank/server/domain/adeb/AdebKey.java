@@ -0,0 +1,67 @@
+package pt.tecnico.bank.server.domain.adeb;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Identifies the ADEB instance of an input. Inputs are already the SHA-256 of the request,
+ * so the key wraps them as they are.
+ */
+public final class AdebKey {
+
+    public static final int LENGTH = 32;
+
+    private final byte[] digest;
+    private final int hash;
+
+    private AdebKey(byte[] digest) {
+        this.digest = digest;
+        // the digest is uniformly distributed, its first bytes are as good a hash as any
+        this.hash = (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8 | (digest[3] & 0xff);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the input is not a SHA-256 digest.
+     */
+    public static AdebKey of(byte[] input) {
+        if (input.length != LENGTH)
+            throw new IllegalArgumentException("ADEB inputs are " + LENGTH + " byte digests, got " + input.length);
+        return new AdebKey(input);
+    }
+
+    /**
+     * The inputs of a batch by key, in order, without the repeated ones and the ones that are not digests,
+     * which only a faulty replica sends.
+     */
+    public static Map<AdebKey, byte[]> distinct(List<byte[]> inputs) {
+        Map<AdebKey, byte[]> keys = new LinkedHashMap<>();
+        for (byte[] input : inputs)
+            if (input.length == LENGTH)
+                keys.putIfAbsent(new AdebKey(input), input);
+        return keys;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof AdebKey))
+            return false;
+        return Arrays.equals(digest, ((AdebKey) o).digest);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 8; i++)
+            builder.append(String.format("%02x", digest[i]));
+        return builder.toString();
+    }
+}
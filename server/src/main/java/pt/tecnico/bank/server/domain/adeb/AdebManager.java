@@ -1,31 +1,155 @@
 package pt.tecnico.bank.server.domain.adeb;
 
+import java.io.Closeable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class AdebManager {
+/**
+ * ADEB instances of this replica, by input.
+ * An echo or ready for an input this replica has not seen creates its instance, and if the client never
+ * reaches this replica nothing else would remove it. A sweeper expires instances that have not delivered
+ * within the TTL, and no new instance is created while maxInstances are alive.
+ * Delivered instances are kept for a short grace period, so the echoes and readys still in flight from the
+ * slower replicas land on them instead of creating new instances that would only expire.
+ */
+public class AdebManager implements Closeable {
 
-    private final ConcurrentHashMap<String, AdebInstance> adebInstances = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<AdebKey, AdebInstance> adebInstances = new ConcurrentHashMap<>();
     private final int nByzantineServers;
+    private final int maxInstances;
+    private final long ttlMillis;
+    private final long deliveredGraceMillis;
+    private final ScheduledExecutorService sweeper;
 
-    public AdebManager(int nByzantineServers) {
+    // broadcasts started by this replica that have not delivered yet
+    private final Semaphore inFlight;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AdebManager(int nByzantineServers, int maxInFlight, int maxInstances, long ttlMillis, long deliveredGraceMillis) {
         this.nByzantineServers = nByzantineServers;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.maxInstances = maxInstances;
+        this.ttlMillis = ttlMillis;
+        this.deliveredGraceMillis = deliveredGraceMillis;
+
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "adeb-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepInterval = Math.max(Math.min(ttlMillis, deliveredGraceMillis) / 2, 100);
+        this.sweeper.scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return false if maxInFlight broadcasts are already running, the request should be refused.
+     */
+    public boolean tryStart() {
+        return this.inFlight.tryAcquire();
     }
 
-    public void addInstance(String input, AdebInstance adebInstance) {
-        adebInstances.put(input, adebInstance);
+    public void finish() {
+        this.inFlight.release();
     }
 
-    public AdebInstance getOrAddAdebInstance(String input) {
-        if (adebInstances.containsKey(input))
-            return adebInstances.get(input);
+    /**
+     * @return the instance of the input, or null if it does not exist and maxInstances are alive.
+     */
+    public AdebInstance getOrAddAdebInstance(AdebKey input) {
+        while (true) {
+            AdebInstance adebInstance = adebInstances.get(input);
 
-        AdebInstance adebInstance = new AdebInstance(this.nByzantineServers);
-        addInstance(input, adebInstance);
+            if (adebInstance == null) {
+                if (adebInstances.size() >= this.maxInstances) {
+                    this.rejected.incrementAndGet();
+                    return null;
+                }
+
+                // the echo, the ready and the local request for an input can race to create its instance
+                adebInstance = adebInstances.computeIfAbsent(input, k -> newInstance());
+            }
+
+            if (!adebInstance.isExpired())
+                return adebInstance;
+
+            // expired but not removed yet, it would swallow the input: replace it
+            adebInstances.remove(input, adebInstance);
+        }
+    }
+
+    public void removeAdebInstance(AdebKey input, AdebInstance adebInstance) {
+        this.adebInstances.remove(input, adebInstance);
+    }
+
+    public long getCreated() {
+        return created.get();
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
 
+    public long getExpired() {
+        return expired.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public int getAlive() {
+        return adebInstances.size();
+    }
+
+    @Override
+    public void close() {
+        this.sweeper.shutdownNow();
+    }
+
+    // aux
+
+    private AdebInstance newInstance() {
+        AdebInstance adebInstance = new AdebInstance(this.nByzantineServers);
+        adebInstance.getDelivery().thenRun(this.delivered::incrementAndGet);
+        this.created.incrementAndGet();
         return adebInstance;
     }
 
-    public void removeAdebInstance(String input) {
-        this.adebInstances.remove(input);
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        long expiredNow = 0;
+
+        for (AdebKey key : adebInstances.keySet()) {
+            AdebInstance adebInstance = adebInstances.get(key);
+
+            if (adebInstance == null)
+                continue;
+
+            synchronized (adebInstance) {
+                if (adebInstance.isDelivered()) {
+                    if (now - adebInstance.getDeliveredAt() > this.deliveredGraceMillis)
+                        adebInstances.remove(key, adebInstance);
+
+                } else if (now - adebInstance.getCreatedAt() > this.ttlMillis) {
+                    // expired first, so a lookup that still finds it retries instead of using it
+                    adebInstance.expire();
+                    if (adebInstances.remove(key, adebInstance))
+                        expiredNow++;
+                }
+            }
+        }
+
+        if (expiredNow > 0) {
+            this.expired.addAndGet(expiredNow);
+            System.out.println("Expired " + expiredNow + " ADEB instances that did not deliver in time (" + getAlive() + " alive)");
+        }
     }
 }
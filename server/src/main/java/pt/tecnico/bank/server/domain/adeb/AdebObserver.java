@@ -4,8 +4,16 @@ import io.grpc.stub.StreamObserver;
 
 public class AdebObserver<R> implements StreamObserver<R> {
 
+    private final PeerHealth health;
+    private final Runnable onError;
 
-    public AdebObserver() {
+    public AdebObserver(PeerHealth health) {
+        this(health, null);
+    }
+
+    public AdebObserver(PeerHealth health, Runnable onError) {
+        this.health = health;
+        this.onError = onError;
     }
 
     @Override
@@ -14,10 +22,15 @@ public class AdebObserver<R> implements StreamObserver<R> {
 
     @Override
     public void onError(Throwable throwable) {
+        health.failure();
+
+        if (onError != null)
+            onError.run();
     }
 
     @Override
     public void onCompleted() {
+        health.success();
     }
 
 }
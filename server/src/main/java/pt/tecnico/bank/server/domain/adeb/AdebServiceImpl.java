@@ -1,13 +1,22 @@
 package pt.tecnico.bank.server.domain.adeb;
 
+import com.google.protobuf.ByteString;
 import io.grpc.stub.StreamObserver;
 import pt.tecnico.bank.server.domain.ServerBackend;
+import pt.tecnico.bank.server.domain.exceptions.ServerStatusRuntimeException;
+import pt.tecnico.bank.server.grpc.Adeb.AdebSessionRequest;
+import pt.tecnico.bank.server.grpc.Adeb.AdebSessionResponse;
 import pt.tecnico.bank.server.grpc.Adeb.EchoRequest;
 import pt.tecnico.bank.server.grpc.Adeb.EchoResponse;
 import pt.tecnico.bank.server.grpc.Adeb.ReadyRequest;
 import pt.tecnico.bank.server.grpc.Adeb.ReadyResponse;
 import pt.tecnico.bank.server.grpc.AdebServiceGrpc;
 
+import java.util.Collections;
+import java.util.List;
+
+import static io.grpc.Status.INTERNAL;
+
 public class AdebServiceImpl extends AdebServiceGrpc.AdebServiceImplBase {
 
     private final ServerBackend serverBackend;
@@ -17,17 +26,53 @@ public class AdebServiceImpl extends AdebServiceGrpc.AdebServiceImplBase {
     }
 
     @Override
-    public synchronized void echo(EchoRequest req, StreamObserver<EchoResponse> responseObserver) {
+    public void echo(EchoRequest req, StreamObserver<EchoResponse> responseObserver) {
+        try {
+
+            serverBackend.echo(req.getKey(), req.getSname(), inputs(req.getInput(), req.getInputsList()), req.getNonce(), req.getTimestamp(),
+                    req.getSignature(), req.getMacsMap());
+
+            responseObserver.onNext(EchoResponse.getDefaultInstance());
+            responseObserver.onCompleted();
+
+        } catch (ServerStatusRuntimeException e) {
+            responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException(e.getTrailers()));
+        }
+    }
+
+    @Override
+    public void ready(ReadyRequest req, StreamObserver<ReadyResponse> responseObserver) {
+        try {
+
+            serverBackend.ready(req.getKey(), req.getSname(), inputs(req.getInput(), req.getInputsList()), req.getNonce(), req.getTimestamp(),
+                    req.getSignature(), req.getMacsMap());
 
-        serverBackend.echo(req.getKey(), req.getSname(), req.getInput(), req.getNonce(), req.getTimestamp(), req.getSignature());
+            responseObserver.onNext(ReadyResponse.getDefaultInstance());
+            responseObserver.onCompleted();
 
+        } catch (ServerStatusRuntimeException e) {
+            responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException(e.getTrailers()));
+        }
     }
 
     @Override
-    public synchronized void ready(ReadyRequest req, StreamObserver<ReadyResponse> responseObserver) {
+    public void openSession(AdebSessionRequest req, StreamObserver<AdebSessionResponse> responseObserver) {
+        try {
+
+            responseObserver.onNext(serverBackend.openReplicaSession(req.getKey(), req.getSname(), req.getEphemeralKey(), req.getNonce(),
+                    req.getTimestamp(), req.getSignature()));
+            responseObserver.onCompleted();
+
+        } catch (ServerStatusRuntimeException e) {
+            responseObserver.onError(INTERNAL.withDescription(e.getMessage()).asRuntimeException(e.getTrailers()));
+        }
+    }
 
-        serverBackend.ready(req.getKey(), req.getSname(), req.getInput(), req.getNonce(), req.getTimestamp(), req.getSignature());
+    // aux
 
+    // replicas that do not batch send a single input
+    private List<ByteString> inputs(ByteString input, List<ByteString> inputs) {
+        return inputs.isEmpty() ? Collections.singletonList(input) : inputs;
     }
 
 }
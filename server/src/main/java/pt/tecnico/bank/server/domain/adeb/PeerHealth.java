@@ -0,0 +1,41 @@
+package pt.tecnico.bank.server.domain.adeb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outcome of the recent calls to one replica.
+ */
+public class PeerHealth {
+
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long lastSuccess = 0;
+    private volatile long lastFailure = 0;
+
+    void success() {
+        this.consecutiveFailures.set(0);
+        this.lastSuccess = System.currentTimeMillis();
+    }
+
+    void failure() {
+        this.consecutiveFailures.incrementAndGet();
+        this.lastFailure = System.currentTimeMillis();
+    }
+
+    public boolean isHealthy() {
+        return this.consecutiveFailures.get() < MAX_CONSECUTIVE_FAILURES;
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    public long getLastSuccess() {
+        return lastSuccess;
+    }
+
+    public long getLastFailure() {
+        return lastFailure;
+    }
+}
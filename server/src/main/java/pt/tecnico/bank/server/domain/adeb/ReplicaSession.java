@@ -0,0 +1,32 @@
+package pt.tecnico.bank.server.domain.adeb;
+
+/**
+ * Session this server opened with a replica, used to mac the echoes and readys sent to it.
+ */
+class ReplicaSession {
+
+    // renewed a bit before the replica drops it, so messages in flight do not fail
+    private static final long EXPIRY_MARGIN_SECONDS = 60;
+
+    private final long id;
+    private final byte[] key;
+    private final long expiresAt;
+
+    ReplicaSession(long id, byte[] key, long expiresAt) {
+        this.id = id;
+        this.key = key;
+        this.expiresAt = expiresAt;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    byte[] getKey() {
+        return key;
+    }
+
+    boolean isExpired() {
+        return System.currentTimeMillis() / 1000 >= expiresAt - EXPIRY_MARGIN_SECONDS;
+    }
+}
@@ -10,7 +10,11 @@ public enum ErrorMessage {
     NOT_ENOUGH_BALANCE("ERROR: Not enough balance to perform this transaction."),
     SAME_ACCOUNT("ERROR: Cannot send money to your own account."),
     BYZANTINE_CLIENT("ERROR: We do not accept requests from byzantine clients."),
-    INVALID_SIGNATURE("ERROR: Either message was altered or the signature is not correct.");
+    INVALID_SIGNATURE("ERROR: Either message was altered or the signature is not correct."),
+    INVALID_SIGNING_MODE("ERROR: Unsupported signing mode."),
+    SERVER_BUSY("ERROR: Too many requests in progress, try again later."),
+    BROADCAST_TIMEOUT("ERROR: The request could not be agreed with the other servers in time."),
+    INVALID_SESSION("ERROR: Unknown or expired session.");
 
     public final String label;
 
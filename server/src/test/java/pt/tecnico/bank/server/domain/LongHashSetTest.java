@@ -0,0 +1,65 @@
+package pt.tecnico.bank.server.domain;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LongHashSetTest {
+
+    @Test
+    public void addRejectsDuplicates() {
+        LongHashSet set = new LongHashSet();
+
+        assertTrue(set.add(42));
+        assertFalse(set.add(42));
+        assertTrue(set.add(-42));
+    }
+
+    @Test
+    public void zeroIsAKey() {
+        LongHashSet set = new LongHashSet();
+
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+
+        Set<Long> seen = new HashSet<>();
+        set.forEach(seen::add);
+        assertEquals(Set.of(0L), seen);
+    }
+
+    @Test
+    public void keepsEveryKeyThroughResizes() {
+        LongHashSet set = new LongHashSet(2);
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(7);
+
+        for (int i = 0; i < 100_000; i++) {
+            long key = random.nextLong();
+            assertEquals(expected.add(key), set.add(key));
+        }
+
+        // every key is still found after the table grew many times
+        for (long key : expected)
+            assertFalse(set.add(key));
+
+        Set<Long> seen = new HashSet<>();
+        set.forEach(seen::add);
+        assertEquals(expected, seen);
+    }
+
+    @Test
+    public void collidingKeysAreAllKept() {
+        LongHashSet set = new LongHashSet();
+
+        // multiples of a large power of two, the kind of keys a weak hash would pile into one slot
+        for (long i = 1; i <= 1000; i++)
+            assertTrue(set.add(i << 32));
+
+        for (long i = 1; i <= 1000; i++)
+            assertFalse(set.add(i << 32));
+    }
+}
@@ -0,0 +1,77 @@
+package pt.tecnico.bank.server.domain;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NonceManagerTest {
+
+    // a ring of 2 * WINDOW + 1 = 11 buckets
+    private static final long WINDOW = 5;
+    private static final long NOW = 1_000_000;
+
+    private NonceManager nonceManager;
+
+    @BeforeEach
+    public void setUp() {
+        nonceManager = new NonceManager();
+        nonceManager.setValidityWindowSeconds(WINDOW);
+    }
+
+    @Test
+    public void rejectsARepeatedNonceInsideTheWindow() {
+        assertTrue(nonceManager.validateNonce(1234, NOW, NOW));
+        assertFalse(nonceManager.validateNonce(1234, NOW, NOW));
+
+        // still rejected at the very end of the window
+        assertFalse(nonceManager.validateNonce(1234, NOW, NOW + WINDOW));
+    }
+
+    @Test
+    public void sameNonceWithAnotherTimestampIsAnotherRequest() {
+        assertTrue(nonceManager.validateNonce(1234, NOW, NOW));
+        assertTrue(nonceManager.validateNonce(1234, NOW - 1, NOW));
+        assertFalse(nonceManager.validateNonce(1234, NOW - 1, NOW));
+    }
+
+    @Test
+    public void rejectsTimestampsOutsideTheWindow() {
+        assertFalse(nonceManager.validateNonce(1, NOW - WINDOW - 1, NOW));
+        assertFalse(nonceManager.validateNonce(2, NOW + WINDOW + 1, NOW));
+    }
+
+    @Test
+    public void keepsNoncesWhileOtherSecondsRotateThroughTheRing() {
+        assertTrue(nonceManager.validateNonce(1234, NOW, NOW));
+
+        // time moves on and fills every other bucket, the one for NOW stays
+        for (long now = NOW; now <= NOW + WINDOW; now++)
+            for (long second = now - WINDOW; second <= now + WINDOW; second++)
+                if (second != NOW)
+                    nonceManager.validateNonce(second, second, now);
+
+        assertFalse(nonceManager.validateNonce(1234, NOW, NOW + WINDOW));
+    }
+
+    @Test
+    public void acceptsANonceAgainOnceItsBucketRotatedOut() {
+        assertTrue(nonceManager.validateNonce(1234, NOW, NOW));
+
+        // NOW + 11 lands in NOW's bucket; by the time it is valid, NOW is outside the window
+        long later = NOW + 2 * WINDOW + 1;
+
+        assertFalse(nonceManager.validateNonce(1234, NOW, later));
+        assertTrue(nonceManager.validateNonce(1234, later, later));
+        assertFalse(nonceManager.validateNonce(1234, later, later));
+    }
+
+    @Test
+    public void keepsThousandsOfNoncesInOneSecond() {
+        for (long nonce = 1; nonce <= 50_000; nonce++)
+            assertTrue(nonceManager.validateNonce(nonce, NOW, NOW));
+
+        for (long nonce = 1; nonce <= 50_000; nonce++)
+            assertFalse(nonceManager.validateNonce(nonce, NOW, NOW));
+    }
+}
@@ -0,0 +1,226 @@
+package pt.tecnico.bank.server.domain;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StateManagerTest {
+
+    @TempDir
+    Path storagePath;
+
+    private PublicKey key;
+    private FailingChannel log;
+    private StateManager stateManager;
+    private ConcurrentHashMap<PublicKey, User> users;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        key = generator.generateKeyPair().getPublic();
+
+        stateManager = new StateManager("test", storagePath, 16, 1) {
+            @Override
+            FileChannel openLog(Path walPath) throws IOException {
+                log = new FailingChannel(super.openLog(walPath));
+                return log;
+            }
+        };
+        users = stateManager.loadState(user -> { });
+        stateManager.commit(users, new StateRecord.OpenAccount(new User(key, "user", 0, 100, new byte[0])));
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        log.close();
+    }
+
+    @Test
+    public void aCommitTheLogFailsToTakeIsNotApplied() {
+        stateManager.commit(users, new StateRecord.Rid(key, 1));
+
+        log.failWrites = true;
+        assertThrows(UncheckedIOException.class, () -> stateManager.commit(users, new StateRecord.Rid(key, 2)));
+        assertEquals(1, users.get(key).getRid());
+
+        log.failWrites = false;
+        stateManager.commit(users, new StateRecord.Rid(key, 3));
+        assertEquals(3, users.get(key).getRid());
+    }
+
+    @Test
+    public void recordsAfterAFailedBatchAreReplayed() {
+        stateManager.commit(users, new StateRecord.Rid(key, 1));
+
+        log.failWrites = true;
+        assertThrows(UncheckedIOException.class, () -> stateManager.commit(users, new StateRecord.Rid(key, 2)));
+
+        log.failWrites = false;
+        stateManager.commit(users, new StateRecord.Rid(key, 3));
+
+        ConcurrentHashMap<PublicKey, User> replayed = new StateManager("test", storagePath, 16, 1).loadState(user -> { });
+        assertEquals(3, replayed.get(key).getRid());
+    }
+
+    @Test
+    public void aLogThatCannotBeCutTakesNoMoreRecords() {
+        log.failWrites = true;
+        log.failTruncates = true;
+        assertThrows(UncheckedIOException.class, () -> stateManager.commit(users, new StateRecord.Rid(key, 1)));
+
+        log.failWrites = false;
+        log.failTruncates = false;
+        assertThrows(IllegalStateException.class, () -> stateManager.commit(users, new StateRecord.Rid(key, 2)));
+        assertEquals(0, users.get(key).getRid());
+    }
+
+    @Test
+    public void aReceiveRemovesOnlyTheTransactionsItReceived() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        MyTransaction first = pending(generator.generateKeyPair().getPublic(), 1);
+        MyTransaction second = pending(generator.generateKeyPair().getPublic(), 1);
+
+        stateManager.commit(users, new StateRecord.CheckAccountWriteBack(
+                key, 100, 0, new byte[0], List.of(first, second), new ArrayList<>()));
+        stateManager.commit(users, new StateRecord.ReceiveAmount(key, List.of(), 0, new byte[0], new ArrayList<>(),
+                List.of(), new byte[0], List.of(second)));
+        assertEquals(List.of(first), users.get(key).getPendingTransactions());
+
+        // replayed, the record removes the transaction that matches the received one, not the same object
+        List<MyTransaction> replayed = new StateManager("test", storagePath, 16, 1).loadState(user -> { })
+                .get(key).getPendingTransactions();
+        assertEquals(1, replayed.size());
+        assertEquals(first.getSenderKey(), replayed.get(0).getSenderKey());
+    }
+
+    private MyTransaction pending(PublicKey senderKey, int wid) {
+        return new MyTransaction(10, "sender", "user", senderKey, key, wid, true, new byte[0]);
+    }
+
+    /**
+     * A log that can be told to fail, after writing half of what it was given.
+     */
+    static class FailingChannel extends FileChannel {
+
+        private final FileChannel channel;
+        volatile boolean failWrites;
+        volatile boolean failTruncates;
+
+        FailingChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!failWrites)
+                return channel.write(src);
+
+            ByteBuffer half = src.duplicate();
+            half.limit(src.position() + src.remaining() / 2);
+            channel.write(half);
+            throw new IOException("No space left on device");
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            if (failTruncates)
+                throw new IOException("Input/output error");
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package pt.tecnico.bank.server.domain.adeb;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdebInstanceTest {
+
+    // 4 replicas, quorums of 3
+    private static final int N_BYZANTINE_SERVERS = 1;
+
+    private static byte[] digest(int seed) {
+        byte[] digest = new byte[AdebKey.LENGTH];
+        Arrays.fill(digest, (byte) seed);
+        return digest;
+    }
+
+    /**
+     * What echo and ready do with a batch from one replica.
+     */
+    private static void receive(AdebInstance instance, String sName, List<byte[]> batch, boolean ready) {
+        for (AdebKey key : AdebKey.distinct(batch).keySet()) {
+            assertEquals(AdebKey.of(digest(7)), key);
+            if (ready)
+                instance.addReady(sName);
+            else
+                instance.addEcho(sName);
+        }
+    }
+
+    @Test
+    public void aBatchRepeatingOneDigestCountsOnce() {
+        List<byte[]> batch = Collections.nCopies(10, digest(7));
+
+        assertEquals(1, AdebKey.distinct(batch).size());
+
+        AdebInstance instance = new AdebInstance(N_BYZANTINE_SERVERS);
+        receive(instance, "Server1", batch, false);
+        receive(instance, "Server1", batch, true);
+
+        assertEquals(1, instance.getEchoCount());
+        assertEquals(1, instance.getReadyCount());
+        assertTrue(instance.getEchoCount() < instance.getByzantineEchoQuorum());
+        assertTrue(instance.getReadyCount() <= N_BYZANTINE_SERVERS);
+    }
+
+    @Test
+    public void aReplicaCountsOnceAcrossBatches() {
+        AdebInstance instance = new AdebInstance(N_BYZANTINE_SERVERS);
+
+        assertTrue(instance.addEcho("Server1"));
+        assertFalse(instance.addEcho("Server1"));
+        assertTrue(instance.addReady("Server1"));
+        assertFalse(instance.addReady("Server1"));
+
+        assertEquals(1, instance.getEchoCount());
+        assertEquals(1, instance.getReadyCount());
+    }
+
+    @Test
+    public void quorumsNeedDistinctReplicas() {
+        AdebInstance instance = new AdebInstance(N_BYZANTINE_SERVERS);
+
+        for (String sName : List.of("Server1", "Server2", "Server3")) {
+            instance.addEcho(sName);
+            instance.addReady(sName);
+        }
+
+        assertEquals(instance.getByzantineEchoQuorum(), instance.getEchoCount());
+        assertEquals(instance.getByzantineReadyQuorum(), instance.getReadyCount());
+    }
+
+    @Test
+    public void distinctKeepsTheBatchOrderAndDropsInputsThatAreNotDigests() {
+        List<byte[]> batch = List.of(digest(2), digest(1), new byte[5], digest(2), digest(3), digest(1));
+
+        Map<AdebKey, byte[]> distinct = AdebKey.distinct(batch);
+
+        assertEquals(List.of(AdebKey.of(digest(2)), AdebKey.of(digest(1)), AdebKey.of(digest(3))),
+                List.copyOf(distinct.keySet()));
+    }
+}
@@ -0,0 +1,149 @@
+package pt.tecnico.bank.tester;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import pt.tecnico.bank.crypto.Crypto;
+import pt.tecnico.bank.crypto.SignaturePayload;
+import pt.tecnico.bank.crypto.SigningMode;
+import pt.tecnico.bank.server.grpc.Server;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ReceivePageTestsIT extends BaseIT {
+
+    private static final String SENDER = "pageSender", RECEIVER = "pageReceiver";
+
+    @BeforeAll
+    public static void oneTimeSetUp() {
+        openUser(SENDER, "pass1");
+        openUser(RECEIVER, "pass2");
+
+        int balance = 100;
+        for (int wid = 1; wid <= 3; wid++) {
+            balance -= wid;
+            send(wid, wid, balance);
+        }
+    }
+
+    private static void send(int amount, int wid, int balance) {
+        Crypto crypto = cryptos.get(SENDER);
+
+        long nonce = crypto.generateNonce();
+        long timestamp = crypto.generateTimestamp();
+
+        Server.Transaction transaction = transaction(crypto, SENDER, amount, wid, true);
+
+        byte[] pairSignature = crypto.encrypt(SENDER, String.valueOf(wid) + balance);
+
+        SignaturePayload m = crypto.payload(SigningMode.STRING).add(transaction).add(nonce).add(timestamp).add(wid)
+                .add(balance).add(pairSignature);
+
+        bcsFrontend.sendAmount(Server.SendAmountRequest.newBuilder()
+                .setTransaction(transaction)
+                .setNonce(nonce)
+                .setTimestamp(timestamp)
+                .setBalance(balance)
+                .setPairSignature(ByteString.copyFrom(pairSignature))
+                .setSignature(ByteString.copyFrom(crypto.encrypt(SENDER, m)))
+                .build());
+    }
+
+    private static Server.Transaction transaction(Crypto crypto, String signer, int amount, int wid, boolean sent) {
+        PublicKey senderKey = crypto.getPublicKey(SENDER);
+        PublicKey receiverKey = crypto.getPublicKey(RECEIVER);
+
+        String transactionMessage = amount + SENDER + RECEIVER + senderKey + receiverKey + wid + sent;
+
+        return Server.Transaction.newBuilder()
+                .setAmount(amount)
+                .setSenderUsername(SENDER)
+                .setReceiverUsername(RECEIVER)
+                .setSenderKey(ByteString.copyFrom(senderKey.getEncoded()))
+                .setReceiverKey(ByteString.copyFrom(receiverKey.getEncoded()))
+                .setWid(wid)
+                .setSent(sent)
+                .setSignature(ByteString.copyFrom(crypto.encrypt(signer, transactionMessage)))
+                .build();
+    }
+
+    private static Server.CheckAccountResponse checkAccount(int rid, int limit) {
+        Crypto crypto = cryptos.get(RECEIVER);
+
+        long nonce = crypto.generateNonce();
+        long timestamp = crypto.generateTimestamp();
+
+        PublicKey key = crypto.getPublicKey(RECEIVER);
+
+        SignaturePayload m = crypto.payload(SigningMode.STRING).add(key).add(key).add(nonce).add(timestamp).add(rid);
+
+        if (limit != 0)
+            m.add(limit).add(0);
+
+        return bcsFrontend.checkAccount(Server.CheckAccountRequest.newBuilder()
+                .setClientKey(ByteString.copyFrom(key.getEncoded()))
+                .setCheckKey(ByteString.copyFrom(key.getEncoded()))
+                .setNonce(nonce)
+                .setTimestamp(timestamp)
+                .setRid(rid)
+                .setSignature(ByteString.copyFrom(crypto.encrypt(RECEIVER, m)))
+                .setLimit(limit)
+                .build());
+    }
+
+    @Test
+    public void receivesAPageOfSeveralTransactions() {
+        Crypto crypto = cryptos.get(RECEIVER);
+
+        Server.CheckAccountResponse page = checkAccount(1, 2);
+
+        assertEquals(2, page.getPendingTransactionsCount());
+        assertEquals(3, page.getPendingCount());
+
+        // the receiver signs its own copies, with the wids that follow its own
+        List<Server.Transaction> transactions = new ArrayList<>();
+        List<Integer> senderWids = new ArrayList<>();
+        int wid = page.getWid();
+        int balance = page.getBalance();
+
+        for (Server.Transaction pending : page.getPendingTransactionsList()) {
+            transactions.add(transaction(crypto, RECEIVER, pending.getAmount(), ++wid, false));
+            senderWids.add(pending.getWid());
+            balance += pending.getAmount();
+        }
+
+        long nonce = crypto.generateNonce();
+        long timestamp = crypto.generateTimestamp();
+
+        PublicKey key = crypto.getPublicKey(RECEIVER);
+
+        byte[] pairSignature = crypto.encrypt(RECEIVER, String.valueOf(wid) + balance);
+
+        SignaturePayload m = crypto.payload(SigningMode.STRING).add(transactions).add(key).add(nonce).add(timestamp).add(wid)
+                .add(balance).add(pairSignature).add(2).add(0);
+        senderWids.forEach(m::add);
+
+        bcsFrontend.receiveAmount(Server.ReceiveAmountRequest.newBuilder()
+                .addAllPendingTransactions(transactions)
+                .setPublicKey(ByteString.copyFrom(key.getEncoded()))
+                .setNonce(nonce)
+                .setTimestamp(timestamp)
+                .setWid(wid)
+                .setBalance(balance)
+                .setPairSignature(ByteString.copyFrom(pairSignature))
+                .setSignature(ByteString.copyFrom(crypto.encrypt(RECEIVER, m)))
+                .setLimit(2)
+                .addAllSenderWids(senderWids)
+                .build());
+
+        Server.CheckAccountResponse after = checkAccount(2, 0);
+
+        assertEquals(2, after.getWid());
+        assertEquals(balance, after.getBalance());
+        assertEquals(1, after.getPendingTransactionsCount());
+    }
+}